@@ -19,14 +19,28 @@ package moonwalker.randomizer.core;
 
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Random;
 
 public class MoonwalkerArea
 {
 	private ArrayList<ShapeWrapper> areas;
 	private RandomPointGenerator rpGen;
+	private boolean frozen;
+	
+	//Packed copy of the shapes, points being stored as 0x0 rectangles
+	private int shapeCount;
+	private int[] shapeX;
+	private int[] shapeY;
+	private int[] shapeW;
+	private int[] shapeH;
+	private int boundsX;
+	private int boundsY;
+	private int boundsW;
+	private int boundsH;
+	private long[] cumulativeWeights;
+	private OccupancyBitmap bitmap;
 	
 	public MoonwalkerArea()
 	{
@@ -66,88 +80,261 @@ public class MoonwalkerArea
 	
 	public void add(Rectangle r)
 	{
+		checkNotFrozen();
 		areas.add(new ShapeWrapper(r));
+		invalidate();
 	}
 	public void add(Point p)
 	{
+		checkNotFrozen();
 		areas.add(new ShapeWrapper(p));
+		invalidate();
 	}
-	public Point getRandomPoint(Random r)
+	private void checkNotFrozen()
 	{
-		return rpGen.getRandomPoint(this, r);
+		if (frozen)
+			throw new IllegalStateException("Cannot modify a frozen area.");
 	}
-	public boolean contains(Point p)
+	private void invalidate()
 	{
-		for (ShapeWrapper sh:areas)
+		shapeX = null;
+		cumulativeWeights = null;
+	}
+	private void pack()
+	{
+		if (shapeX != null)
+			return;
+		int l = areas.size();
+		int[] xArr = new int[l];
+		int[] yArr = new int[l];
+		int[] wArr = new int[l];
+		int[] hArr = new int[l];
+		for (int i = 0; i < l; i++)
 		{
+			ShapeWrapper sh = areas.get(i);
 			if (sh.isRectangle())
 			{
-				if (rectContains(sh.getRectangle(), p))
-					return true;
+				Rectangle rect = sh.getRectangle();
+				xArr[i] = rect.x;
+				yArr[i] = rect.y;
+				wArr[i] = rect.width;
+				hArr[i] = rect.height;
+			}
+			else
+			{
+				Point p = sh.getPoint();
+				xArr[i] = p.x;
+				yArr[i] = p.y;
+			}
+		}
+		shapeCount = l;
+		shapeY = yArr;
+		shapeW = wArr;
+		shapeH = hArr;
+		shapeX = xArr;
+		computeBounds();
+	}
+	private void computeBounds()
+	{
+		int l = shapeCount;
+		if (l == 0)
+			return;
+		int[] xArr = shapeX;
+		int[] yArr = shapeY;
+		int[] wArr = shapeW;
+		int[] hArr = shapeH;
+		int bX = xArr[0];
+		int bY = yArr[0];
+		int bW = wArr[0];
+		int bH = hArr[0];
+		for (int i = 1; i < l; i++)
+		{
+			int x = xArr[i];
+			int y = yArr[i];
+			if (x < bX)
+			{
+				bW += bX - x;
+				bX = x;
 			}
-			else if (sh.getPoint().equals(p))
+			if (y < bY)
+			{
+				bH += bY - y;
+				bY = y;
+			}
+			if ((x + wArr[i]) > (bX + bW))
+				bW = x + wArr[i] - bX;
+			if ((y + hArr[i]) > (bY + bH))
+				bH = y + hArr[i] - bY;
+		}
+		boundsX = bX;
+		boundsY = bY;
+		boundsW = bW;
+		boundsH = bH;
+	}
+	public void freeze()
+	{
+		if (frozen)
+			return;
+		frozen = true;
+		pack();
+		getCumulativeWeights();
+		bitmap = OccupancyBitmap.compile(getBounds(), shapeX, shapeY, shapeW, shapeH, shapeCount);
+	}
+	public boolean isFrozen()
+	{
+		return frozen;
+	}
+	public Point getRandomPoint(Random r)
+	{
+		return rpGen.getRandomPoint(this, r);
+	}
+	//Returns the number of points stored, 0 if the area is empty
+	public int getRandomPoints(Random r, int[] dest, int count)
+	{
+		return rpGen.getRandomPoints(this, r, dest, count);
+	}
+	public boolean contains(Point p)
+	{
+		return contains(p.x, p.y);
+	}
+	public boolean contains(int x, int y)
+	{
+		if (bitmap != null)
+			return bitmap.contains(x, y);
+		pack();
+		if ((shapeCount == 0)
+				|| !rectContains(boundsX, boundsY, boundsW, boundsH, x, y))
+			return false;
+		int[] xArr = shapeX;
+		int[] yArr = shapeY;
+		int[] wArr = shapeW;
+		int[] hArr = shapeH;
+		for (int i = 0; i < shapeCount; i++)
+		{
+			if (rectContains(xArr[i], yArr[i], wArr[i], hArr[i], x, y))
 				return true;
 		}
 		return false;
 	}
 	public boolean rectContains(Rectangle rect, Point p)
 	{
-		return new Rectangle(rect.x, rect.y, rect.width + 1, rect.height + 1)
-				.contains(p);
+		return rectContains(rect.x, rect.y, rect.width, rect.height, p.x, p.y);
+	}
+	//Shapes are inclusive of their right and bottom edges
+	private static boolean rectContains(int rx, int ry, int rw, int rh, int x, int y)
+	{
+		return (rw >= 0) && (rh >= 0)
+				&& (x >= rx) && (y >= ry)
+				&& (x <= (rx + rw)) && (y <= (ry + rh));
+	}
+	private static boolean rectIntersects(int x1, int y1, int w1, int h1,
+			int x2, int y2, int w2, int h2)
+	{
+		return (w1 >= 0) && (h1 >= 0) && (w2 >= 0) && (h2 >= 0)
+				&& (x1 <= (x2 + w2)) && (x2 <= (x1 + w1))
+				&& (y1 <= (y2 + h2)) && (y2 <= (y1 + h1));
 	}
 	public Rectangle getBounds()
 	{
-		Rectangle ret = null;
-		for (ShapeWrapper sh:areas)
+		pack();
+		if (shapeCount == 0)
+			return null;
+		return new Rectangle(boundsX, boundsY, boundsW, boundsH);
+	}
+	//Cached bounds, only meaningful when the area is not empty
+	int getBoundsX()
+	{
+		pack();
+		return boundsX;
+	}
+	int getBoundsY()
+	{
+		pack();
+		return boundsY;
+	}
+	int getBoundsWidth()
+	{
+		pack();
+		return boundsW;
+	}
+	int getBoundsHeight()
+	{
+		pack();
+		return boundsH;
+	}
+	long[] getCumulativeWeights()
+	{
+		long[] ret = cumulativeWeights;
+		if (ret == null)
 		{
-			if (sh.isRectangle())
+			pack();
+			int[] wArr = shapeW;
+			int[] hArr = shapeH;
+			ret = new long[shapeCount];
+			long sum = 0;
+			for (int i = 0; i < ret.length; i++)
 			{
-				Rectangle rect = sh.getRectangle();
-				if (ret == null)
-					ret = new Rectangle(rect);
-				else
-				{
-					if (rect.x < ret.x)
-					{
-						ret.width += ret.x - rect.x;
-						ret.x = rect.x;
-					}
-					if (rect.y < ret.y)
-					{
-						ret.height += ret.y - rect.y;
-						ret.y = rect.y;
-					}
-					if ((rect.x + rect.width) > (ret.x + ret.width))
-						ret.width = rect.x + rect.width - ret.x;
-					if ((rect.y + rect.height) > (ret.y + ret.height))
-						ret.height = rect.y + rect.height - ret.y;
-				}
+				sum += (wArr[i] + 1) * (hArr[i] + 1);
+				ret[i] = sum;
 			}
-			else
+			cumulativeWeights = ret;
+		}
+		return ret;
+	}
+	public int getShapeCount()
+	{
+		pack();
+		return shapeCount;
+	}
+	public boolean isEmpty()
+	{
+		return getShapeCount() == 0;
+	}
+	//Returns the points of this area not covered by the other one as disjoint rectangles,
+	//so that the default generator samples the remainder uniformly
+	public MoonwalkerArea subtract(MoonwalkerArea other)
+	{
+		pack();
+		other.pack();
+		
+		RectList ret = new RectList();
+		RectList fragments = new RectList();
+		RectList spare = new RectList();
+		for (int i = 0; i < shapeCount; i++)
+		{
+			if ((shapeW[i] < 0) || (shapeH[i] < 0))
+				continue;
+			fragments.clear();
+			fragments.add(shapeX[i], shapeY[i], shapeX[i] + shapeW[i] + 1, shapeY[i] + shapeH[i] + 1);
+			for (int j = 0; (j < ret.count) && (fragments.count > 0); j++)
 			{
-				Point p = sh.getPoint();
-				if (ret == null)
-					ret = new Rectangle(p.x, p.y, 0, 0);
-				else
+				RectList cut = fragments.cut(ret.x1[j], ret.y1[j], ret.x2[j], ret.y2[j], spare);
+				if (cut == spare)
 				{
-					if (p.x < ret.x)
-					{
-						ret.width += ret.x - p.x;
-						ret.x = p.x;
-					}
-					if (p.y < ret.y)
-					{
-						ret.height += ret.y - p.y;
-						ret.y = p.y;
-					}
-					if (p.x > (ret.x + ret.width))
-						ret.width = p.x - ret.x;
-					if (p.y > (ret.y + ret.height))
-						ret.height = p.y - ret.y;
+					spare = fragments;
+					fragments = cut;
 				}
 			}
+			ret.addAll(fragments);
 		}
-		return ret;
+		for (int i = 0; (i < other.shapeCount) && (ret.count > 0); i++)
+		{
+			if ((other.shapeW[i] < 0) || (other.shapeH[i] < 0))
+				continue;
+			RectList cut = ret.cut(other.shapeX[i], other.shapeY[i],
+					other.shapeX[i] + other.shapeW[i] + 1, other.shapeY[i] + other.shapeH[i] + 1, spare);
+			if (cut == spare)
+			{
+				spare = ret;
+				ret = cut;
+			}
+		}
+		
+		MoonwalkerArea area = new MoonwalkerArea();
+		for (int i = 0; i < ret.count; i++)
+			area.add(new Rectangle(ret.x1[i], ret.y1[i],
+					ret.x2[i] - ret.x1[i] - 1, ret.y2[i] - ret.y1[i] - 1));
+		return area;
 	}
 	public ShapeWrapper[] getContent()
 	{
@@ -199,20 +386,23 @@ public class MoonwalkerArea
 //	}
 	public boolean intersects(Rectangle rect)
 	{
-		Rectangle r1 = new Rectangle(rect);
-		r1.width++;
-		r1.height++;
-		for (ShapeWrapper sh: areas)
+		return intersects(rect.x, rect.y, rect.width, rect.height);
+	}
+	public boolean intersects(int x, int y, int width, int height)
+	{
+		if (bitmap != null)
+			return bitmap.intersects(x, y, width, height);
+		pack();
+		if ((shapeCount == 0)
+				|| !rectIntersects(x, y, width, height, boundsX, boundsY, boundsW, boundsH))
+			return false;
+		int[] xArr = shapeX;
+		int[] yArr = shapeY;
+		int[] wArr = shapeW;
+		int[] hArr = shapeH;
+		for (int i = 0; i < shapeCount; i++)
 		{
-			if (sh.isRectangle())
-			{
-				Rectangle r2 = new Rectangle(sh.getRectangle());
-				r2.width++;
-				r2.height++;
-				if (r1.intersects(r2))
-					return true;
-			}
-			else if (r1.contains(sh.getPoint()))
+			if (rectIntersects(x, y, width, height, xArr[i], yArr[i], wArr[i], hArr[i]))
 				return true;
 		}
 		return false;
@@ -226,9 +416,25 @@ public class MoonwalkerArea
 	}
 	public boolean intersects(MoonwalkerArea area)
 	{
-		for (ShapeWrapper targetSh: area.areas)
+		return intersects(area, 0, 0);
+	}
+	//Tests against the given area as if it were moved by (dx, dy)
+	public boolean intersects(MoonwalkerArea area, int dx, int dy)
+	{
+		pack();
+		area.pack();
+		if ((shapeCount == 0) || (area.shapeCount == 0)
+				|| !rectIntersects(boundsX, boundsY, boundsW, boundsH,
+						area.boundsX + dx, area.boundsY + dy, area.boundsW, area.boundsH))
+			return false;
+		int[] xArr = area.shapeX;
+		int[] yArr = area.shapeY;
+		int[] wArr = area.shapeW;
+		int[] hArr = area.shapeH;
+		int l = area.shapeCount;
+		for (int i = 0; i < l; i++)
 		{
-			if (intersects(targetSh))
+			if (intersects(xArr[i] + dx, yArr[i] + dy, wArr[i], hArr[i]))
 				return true;
 		}
 		return false;
@@ -275,51 +481,239 @@ public class MoonwalkerArea
 		return "[" + ret + "]";
 	}
 	
-	private static class DefaultRandomPointGenerator implements RandomPointGenerator
+	//Returns an area covering exactly the same points with overlapping and abutting
+	//shapes merged into disjoint rectangles; single remaining cells become points
+	public MoonwalkerArea compact()
 	{
-		@Override
-		public Point getRandomPoint(MoonwalkerArea area, Random r)
+		pack();
+		int[] xs = new int[shapeCount * 2];
+		int[] ys = new int[shapeCount * 2];
+		int valid = 0;
+		for (int i = 0; i < shapeCount; i++)
 		{
-			long sum = 0;
-			for (ShapeWrapper sh: area.areas)
+			if ((shapeW[i] < 0) || (shapeH[i] < 0))
+				continue;
+			xs[valid * 2] = shapeX[i];
+			xs[(valid * 2) + 1] = shapeX[i] + shapeW[i] + 1;
+			ys[valid * 2] = shapeY[i];
+			ys[(valid * 2) + 1] = shapeY[i] + shapeH[i] + 1;
+			valid++;
+		}
+		int xCount = sortUnique(xs, valid * 2);
+		int yCount = sortUnique(ys, valid * 2);
+		
+		//Coverage of the cells of the grid spanned by all shape edges
+		int columns = Math.max(xCount - 1, 0);
+		int rows = Math.max(yCount - 1, 0);
+		boolean[][] covered = new boolean[rows][columns];
+		for (int i = 0; i < shapeCount; i++)
+		{
+			if ((shapeW[i] < 0) || (shapeH[i] < 0))
+				continue;
+			int col1 = Arrays.binarySearch(xs, 0, xCount, shapeX[i]);
+			int col2 = Arrays.binarySearch(xs, 0, xCount, shapeX[i] + shapeW[i] + 1);
+			int row1 = Arrays.binarySearch(ys, 0, yCount, shapeY[i]);
+			int row2 = Arrays.binarySearch(ys, 0, yCount, shapeY[i] + shapeH[i] + 1);
+			for (int row = row1; row < row2; row++)
+				Arrays.fill(covered[row], col1, col2, true);
+		}
+		
+		//Rows are split into maximal horizontal runs, and runs with identical
+		//extents in consecutive rows are merged into one rectangle
+		MoonwalkerArea ret = new MoonwalkerArea(rpGen);
+		RectList open = new RectList();
+		RectList current = new RectList();
+		for (int row = 0; row <= rows; row++)
+		{
+			current.clear();
+			if (row < rows)
 			{
-				if (sh.isRectangle())
+				boolean[] cells = covered[row];
+				for (int col = 0; col < columns; col++)
 				{
-					Rectangle rect = sh.getRectangle();
-					sum += (rect.width + 1) * (rect.height + 1);
+					if (!cells[col])
+						continue;
+					int start = col;
+					while ((col < columns) && cells[col])
+						col++;
+					current.add(xs[start], ys[row], xs[col], ys[row + 1]);
 				}
+			}
+			
+			int j = 0;
+			for (int i = 0; i < open.count; i++)
+			{
+				while ((j < current.count) && (current.x1[j] < open.x1[i]))
+					j++;
+				if ((j < current.count)
+						&& (current.x1[j] == open.x1[i])
+						&& (current.x2[j] == open.x2[i]))
+					current.y1[j] = open.y1[i];
 				else
-					sum++;
+					ret.addHalfOpen(open.x1[i], open.y1[i], open.x2[i], open.y2[i]);
 			}
-			long desired = new BigDecimal(sum).multiply(new BigDecimal(r.nextDouble())).longValue();
-			long counter = 0;
-			for (ShapeWrapper sh: area.areas)
+			RectList swap = open;
+			open = current;
+			current = swap;
+		}
+		return ret;
+	}
+	private void addHalfOpen(int x1, int y1, int x2, int y2)
+	{
+		if (((x2 - x1) == 1) && ((y2 - y1) == 1))
+			add(new Point(x1, y1));
+		else
+			add(new Rectangle(x1, y1, x2 - x1 - 1, y2 - y1 - 1));
+	}
+	private static int sortUnique(int[] arr, int length)
+	{
+		Arrays.sort(arr, 0, length);
+		if (length == 0)
+			return 0;
+		int ret = 1;
+		for (int i = 1; i < length; i++)
+			if (arr[i] != arr[ret - 1])
+				arr[ret++] = arr[i];
+		return ret;
+	}
+	
+	//Half-open rectangles [x1, x2) x [y1, y2)
+	private static class RectList
+	{
+		private int count;
+		private int[] x1 = new int[8];
+		private int[] y1 = new int[8];
+		private int[] x2 = new int[8];
+		private int[] y2 = new int[8];
+		
+		void clear()
+		{
+			count = 0;
+		}
+		void add(int rx1, int ry1, int rx2, int ry2)
+		{
+			if (count == x1.length)
 			{
-				long incr;
-				if (sh.isRectangle())
+				int l = count * 2;
+				x1 = Arrays.copyOf(x1, l);
+				y1 = Arrays.copyOf(y1, l);
+				x2 = Arrays.copyOf(x2, l);
+				y2 = Arrays.copyOf(y2, l);
+			}
+			x1[count] = rx1;
+			y1[count] = ry1;
+			x2[count] = rx2;
+			y2[count] = ry2;
+			count++;
+		}
+		void addAll(RectList list)
+		{
+			for (int i = 0; i < list.count; i++)
+				add(list.x1[i], list.y1[i], list.x2[i], list.y2[i]);
+		}
+		//Returns this list if the given rectangle overlaps no entry, otherwise fills dest with
+		//the entries with the rectangle removed and returns it
+		RectList cut(int cx1, int cy1, int cx2, int cy2, RectList dest)
+		{
+			int first = 0;
+			while ((first < count)
+					&& ((cx1 >= x2[first]) || (cx2 <= x1[first]) || (cy1 >= y2[first]) || (cy2 <= y1[first])))
+				first++;
+			if (first == count)
+				return this;
+			
+			RectList ret = dest;
+			ret.clear();
+			for (int i = 0; i < count; i++)
+			{
+				int rx1 = x1[i];
+				int ry1 = y1[i];
+				int rx2 = x2[i];
+				int ry2 = y2[i];
+				if ((cx1 >= rx2) || (cx2 <= rx1) || (cy1 >= ry2) || (cy2 <= ry1))
 				{
-					Rectangle rect = sh.getRectangle();
-					int w = (rect.width + 1);
-					int h = (rect.height + 1);
-					incr = w * h;
-					if ((desired >= counter) && (desired < (counter + incr)))
-					{
-						long diff = desired - counter;
-						return new Point((int) (rect.x + diff % w), (int) (rect.y + diff / w));
-					}
+					ret.add(rx1, ry1, rx2, ry2);
+					continue;
 				}
+				int top = Math.max(ry1, cy1);
+				int bottom = Math.min(ry2, cy2);
+				if (ry1 < cy1)
+					ret.add(rx1, ry1, rx2, cy1);
+				if (cy2 < ry2)
+					ret.add(rx1, cy2, rx2, ry2);
+				if (rx1 < cx1)
+					ret.add(rx1, top, cx1, bottom);
+				if (cx2 < rx2)
+					ret.add(cx2, top, rx2, bottom);
+			}
+			return ret;
+		}
+	}
+	
+	private static class DefaultRandomPointGenerator implements RandomPointGenerator
+	{
+		@Override
+		public Point getRandomPoint(MoonwalkerArea area, Random r)
+		{
+			long[] weights = area.getCumulativeWeights();
+			int l = weights.length;
+			if ((l == 0) || (weights[l - 1] <= 0))
+				return null;
+			
+			long desired = scale(weights[l - 1], r.nextDouble());
+			int index = findShape(weights, desired);
+			long diff = desired - ((index == 0)?0:weights[index - 1]);
+			int w = (area.shapeW[index] + 1);
+			return new Point((int) (area.shapeX[index] + diff % w),
+					(int) (area.shapeY[index] + diff / w));
+		}
+		@Override
+		public int getRandomPoints(MoonwalkerArea area, Random r, int[] dest, int count)
+		{
+			long[] weights = area.getCumulativeWeights();
+			int l = weights.length;
+			if ((l == 0) || (weights[l - 1] <= 0))
+				return 0;
+			
+			long sum = weights[l - 1];
+			int[] xArr = area.shapeX;
+			int[] yArr = area.shapeY;
+			int[] wArr = area.shapeW;
+			for (int i = 0; i < count; i++)
+			{
+				long desired = scale(sum, r.nextDouble());
+				int index = findShape(weights, desired);
+				long diff = desired - ((index == 0)?0:weights[index - 1]);
+				int w = (wArr[index] + 1);
+				dest[i * 2] = (int) (xArr[index] + diff % w);
+				dest[(i * 2) + 1] = (int) (yArr[index] + diff / w);
+			}
+			return count;
+		}
+		
+		//Exact equivalent of floor(sum * d) for d produced by Random.nextDouble(),
+		//which is always a multiple of 2^-53
+		private static long scale(long sum, double d)
+		{
+			long m = ((long) (d * 0x1p53)) << 10;
+			long hi = Math.multiplyHigh(sum, m);
+			long lo = sum * m;
+			return (hi << 1) | (lo >>> 63);
+		}
+		//Returns the index of the first shape whose cumulative weight exceeds desired
+		private static int findShape(long[] weights, long desired)
+		{
+			int low = 0;
+			int high = weights.length - 1;
+			while (low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if (weights[mid] > desired)
+					high = mid;
 				else
-				{
-					incr = 1;
-					if (desired == counter)
-					{
-						return new Point(sh.getPoint());
-					}
-				}
-				counter += incr;
+					low = mid + 1;
 			}
-			//dead code (hopefully)
-			return null;
+			return low;
 		}
 	}
 }
@@ -23,30 +23,25 @@ import java.awt.Rectangle;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
-import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.function.BiPredicate;
-import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import java.util.stream.Stream;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.xml.sax.SAXException;
+import javax.xml.stream.XMLStreamException;
 import moonwalker.core.structures.MDirectObject;
 import moonwalker.core.structures.MoonwalkerObject;
 import moonwalker.core.structures.MDirectObject.Container;
@@ -61,73 +56,69 @@ public class MoonwalkerRandomizer
 	private HashMap<Short, Binding[]> bindingMap;
 	private ArrayList<String> mStageNames;
 	private HashMap<String, Integer> mStageIndices;
-	private HashMap<String, HashMap<String, MoonwalkerArea>> mSpawnMaps;
-	private HashMap<String, HashMap<Short, MapRefResolver>> mSpawnMapRefs;
-	private HashMap<String, ArrayList<String>> mExecProcs;
-	private HashMap<String, HashMap<String, HashMap<String, HashMap<String, ArrayList<String>>>>> mProcArgs;
+	private HashMap<String, StageData> mStages;
 	private ArrayList<HitboxRef> mHitboxes;
-	private HashMap<String, ArrayList<HitboxRef>> mCollisionChecks;
+	private HashMap<Short, HitboxRef[]> mHitboxesByType;
+	private BitSet[] mCollisionMatrix;
+	private int[][] mCollisionTargets;
+	
+	private static final int REGION_WIDTH = 320; //TODO move to Metadata
+	private static final int BORDER_BUFFER = 3;
 	
 	private int retryLimit;
+	private int freeSpaceTries;
 	private int mergeThreshold;
+	private int gridCellSize;
+	private int backtrackDepth;
+	private int backtrackRetries;
+	private int backtrackBudget;
 	
-	public MoonwalkerRandomizer() throws ParserConfigurationException, SAXException, IOException
+	public MoonwalkerRandomizer() throws XMLStreamException, IOException
 	{
-		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-		DocumentBuilder builder = factory.newDocumentBuilder();
-		Document doc = builder.parse(getClass().getResourceAsStream("/moonwalker/randomizer/data/Randomizer.xml"));
-		
-		Element root = doc.getDocumentElement();
-		
-		StageDataParser sdp = new StageDataParser(root);
+		byte[] xml;
+		try (InputStream in = getClass().getResourceAsStream("/moonwalker/randomizer/data/Randomizer.xml"))
+		{
+			xml = in.readAllBytes();
+		}
+		//Snapshot written by StageDataCompiler, only used if it matches the XML
+		ByteBuffer snapshot = null;
+		try (InputStream in = getClass().getResourceAsStream("/moonwalker/randomizer/data/Randomizer.bin"))
+		{
+			if (in != null)
+				snapshot = ByteBuffer.wrap(in.readAllBytes());
+		}
+		if ((snapshot != null) && (StageDataParser.getSnapshotChecksum(snapshot) != StageDataParser.checksum(xml)))
+			System.err.println("Randomizer.bin does not match Randomizer.xml, parsing the XML instead. "
+					+ "Rerun StageDataCompiler to update it.");
+		StageDataParser sdp = StageDataParser.load(xml, snapshot);
 		
 		bindingMap = sdp.getBindingMap();
 		mStageNames = sdp.getStageNameList();
 		mStageIndices = sdp.getStageIndexList();
-		mSpawnMaps = sdp.getSpawnMapList();
-		mSpawnMapRefs = sdp.getSpawnMapRefList();
-		mExecProcs = sdp.getExecutedProcedureList();
-		mProcArgs = sdp.getProcedureArguments();
+		mStages = sdp.getStages();
 		mHitboxes = sdp.getHitboxes();
-		mCollisionChecks = sdp.getCollisionChecks();
+		mCollisionMatrix = sdp.getCollisionMatrix();
+		mCollisionTargets = sdp.getCollisionTargets();
 		
-		RandomPointGenerator rpGen = (area, r) ->
-		{			
-			Rectangle rect = area.getBounds();
-			
-			while ((rect.width > 1) || (rect.height > 1))
-			{
-				int wHalf = rect.width / 2;
-				int hHalf = rect.height / 2;
-				Rectangle nw = new Rectangle(rect.x, rect.y, wHalf, hHalf);
-				Rectangle ne = new Rectangle(rect.x + wHalf, rect.y,
-						rect.width - wHalf, hHalf);
-				Rectangle sw = new Rectangle(rect.x, rect.y + hHalf,
-						wHalf, rect.height - hHalf);
-				Rectangle se = new Rectangle(rect.x + wHalf, rect.y + hHalf,
-						rect.width - wHalf, rect.height - hHalf);
-				
-				List<Rectangle> rects = Stream.of(nw, ne, sw, se)
-						.filter(rec -> area.intersects(rec))
-						.collect(Collectors.toList());
-				
-				rect = rects.get(r.nextInt(rects.size()));
-			}
-			
-			List<Point> ret = getPoints(rect)
-					.stream()
-					.filter(p -> area.contains(p))
-					.collect(Collectors.toList());
-			
-			return ret.get(r.nextInt(ret.size()));
-		};
+		HashMap<Short, ArrayList<HitboxRef>> hitboxesByType = new HashMap<>();
+		for (HitboxRef hRef: mHitboxes)
+			hitboxesByType.computeIfAbsent(hRef.getSourceObjectType(), t -> new ArrayList<>()).add(hRef);
+		mHitboxesByType = new HashMap<>();
+		for (Map.Entry<Short, ArrayList<HitboxRef>> entry: hitboxesByType.entrySet())
+			mHitboxesByType.put(entry.getKey(), entry.getValue().toArray(l -> new HitboxRef[l]));
+		
+		RandomPointGenerator rpGen = new QuadtreeRandomPointGenerator();
 		
-		for (HashMap<String, MoonwalkerArea> map: mSpawnMaps.values())
-			for (MoonwalkerArea area: map.values())
-				area.setRandomPointGenerator(rpGen);
+		for (StageData stage: mStages.values())
+			stage.setRandomPointGenerator(rpGen);
 		
 		retryLimit = 100;
+		freeSpaceTries = 8;
 		mergeThreshold = 16;
+		gridCellSize = 64;
+		backtrackDepth = 3;
+		backtrackRetries = 4;
+		backtrackBudget = 50;
 	}
 	public void randomize(byte[] rom, Map<String, Boolean> settings,
 			MoonwalkerMetadata meta, long seed, File customMusicDir) throws OutOfSpaceException
@@ -158,17 +149,30 @@ public class MoonwalkerRandomizer
 				if (log)
 					System.out.println("Randomizing stage " + stageName + " (index " + stageIndex + ")");
 				
-				HashMap<Short, MapRefResolver> mapperMap = mSpawnMapRefs.get(stageName);
+				HashMap<Short, MapRefResolver> mapperMap = mStages.get(stageName).getSpawnMapRefs();
 				
 				Point camPos = MoonwalkerIO.getInitialCameraPosition(rom, stageIndex, meta);
 				Dimension camSize = meta.getCameraSize();
 				Rectangle initialCamera = new Rectangle(camPos.x, camPos.y,
 						camSize.width, camSize.height);
 				
+				//shared by placement and the overlap audit of this stage
+				HitboxResolver hitboxes = new HitboxResolver(mHitboxesByType);
+				
 				if (mapperMap != null)
 				{
-					ArrayList<MDirectObject> finishedObjsList = new ArrayList<>();
-					ArrayList<Map.Entry<MDirectObject, MapRef>> queuedObjsList = new ArrayList<>();
+					boolean sampleFreeSpace = settings.getOrDefault("randomizePositions.sampleFreeSpace", false);
+					boolean constrainedFirst = settings.getOrDefault("randomizePositions.constrainedFirst", false);
+					int backtrackLimit = settings.getOrDefault("randomizePositions.backtrack", false)
+							? backtrackBudget : 0;
+					
+					HashMap<Short, Integer> minSpacings = new HashMap<>();
+					for (Map.Entry<Short, MapRefResolver> entry: mapperMap.entrySet())
+						if (entry.getValue().getMinSpacing() > 0)
+							minSpacings.put(entry.getKey(), entry.getValue().getMinSpacing());
+					
+					ArrayList<MDirectObject> fixedObjsList = new ArrayList<>();
+					ArrayList<QueuedObject> queuedObjsList = new ArrayList<>();
 					
 					for (MDirectObject obj: objectArr[stageIndex])
 					{
@@ -178,7 +182,7 @@ public class MoonwalkerRandomizer
 						MapRefResolver mapper = mapperMap.get(type);
 						if (mapper == null)
 						{
-							finishedObjsList.add(obj);
+							fixedObjsList.add(obj);
 							continue;
 						}
 						MapRef map = mapper.getMapRef(data);
@@ -189,30 +193,39 @@ public class MoonwalkerRandomizer
 								+ Integer.toHexString(0xFFFF & obj.getType())
 									.toUpperCase(), true)))
 						{
-							finishedObjsList.add(obj);
+							fixedObjsList.add(obj);
 							continue;
 						}
 						
-						//TODO turn into a proper tuple
-						queuedObjsList.add(new AbstractMap.SimpleEntry<MDirectObject, MapRef>(obj, map));
+						//seeds are drawn in table order so that they don't depend on the placement order
+						queuedObjsList.add(new QueuedObject(obj, map, posRand.nextLong()));
 					}
 					
-					for (Map.Entry<MDirectObject, MapRef> queuedEntry: queuedObjsList)
+					if (constrainedFirst)
 					{
-						MDirectObject obj = queuedEntry.getKey();
-						MapRef map = queuedEntry.getValue();
-						
-						randomizePosition(obj, finishedObjsList,
-								stageName, map, initialCamera, posRand, log);
-						finishedObjsList.add(obj);
+						for (QueuedObject queued: queuedObjsList)
+							queued.setScore(getPlacementDifficulty(queued, stageName, hitboxes));
+						//stable, so equally difficult objects keep their table order
+						queuedObjsList.sort(Comparator.comparingDouble(QueuedObject::getScore).reversed());
 					}
+					
+					PlacementStats stats = placeObjects(queuedObjsList, createPlacedObjects(fixedObjsList, hitboxes, minSpacings),
+							stageName, initialCamera, sampleFreeSpace, backtrackLimit, log);
+					stats.messages.forEach(System.out::println);
+					
+					if (log)
+						System.out.println("Placed " + queuedObjsList.size() + " objects in "
+								+ stats.attempts + " attempts"
+								+ (constrainedFirst ? " (most constrained first)" : "")
+								+ ((stats.backtracks > 0) ? ", backtracked " + stats.backtracks + " times" : ""));
 				}
 				
-				ArrayList<String> procList = mExecProcs.get(stageName);
+				List<ProcedureDescriptor> procList = mStages.get(stageName).getProcedures();
 				if (procList != null)
 				{
-					for (String procName: procList)
+					for (ProcedureDescriptor proc: procList)
 					{
+						String procName = proc.getName();
 						if(!settings.getOrDefault(
 								"executeProcedures."
 								+ stageName
@@ -223,20 +236,20 @@ public class MoonwalkerRandomizer
 						switch (procName)
 						{
 							case "randomizeCaveData":
-								randomizeCaveData(objectArr[stageIndex], stageName, stageIndex,
+								randomizeCaveData(proc, objectArr[stageIndex], stageName, stageIndex,
 										initialCamera,
 										new Random(Hashes.murmur64(procRand.nextLong())));
 								break;
 							case "fixStage1Doors":
-								fixStage1Doors(objectArr[stageIndex], stageName, stageIndex,
+								fixStage1Doors(proc, objectArr[stageIndex], stageName, stageIndex,
 										new Random(Hashes.murmur64(procRand.nextLong())));
 								break;
 //							case "fixSpiders":
-//								fixSpiders(objectArr[stageIndex], stageName, stageIndex,
+//								fixSpiders(proc, objectArr[stageIndex], stageName, stageIndex,
 //										new Random(Hashes.murmur64(procRand.nextLong())));
 //								break;
 							case "randomizeTeleporters":
-								randomizeTeleporters(objectArr[stageIndex], stageName, stageIndex,
+								randomizeTeleporters(proc, objectArr[stageIndex], stageName, stageIndex,
 										new Random(Hashes.murmur64(procRand.nextLong())));
 								break;
 							default:
@@ -249,6 +262,15 @@ public class MoonwalkerRandomizer
 				
 				for (MDirectObject obj: objectArr[stageIndex])
 					applyGlobalAttributes(obj, objectArr[stageIndex]);
+				
+				if (settings.getOrDefault("randomizePositions.auditOverlaps", false))
+				{
+					//the procedures and global attributes may have changed object data since placement
+					hitboxes.clear();
+					int overlaps = auditOverlaps(stageName, objectArr[stageIndex], hitboxes, log);
+					if (overlaps > 0)
+						System.out.println(overlaps + " overlapping object pairs in stage " + stageName);
+				}
 			}
 			
 			MoonwalkerIO.saveMainObjectArray(rom, objectArr, meta);
@@ -788,7 +810,7 @@ public class MoonwalkerRandomizer
 		ret[l] = 0;
 		return ret;
 	}
-	private void randomizeCaveData(MDirectObject[] objArr, String stageName, int stageIndex, Rectangle initialCamera, Random r)
+	private void randomizeCaveData(ProcedureDescriptor proc, MDirectObject[] objArr, String stageName, int stageIndex, Rectangle initialCamera, Random r)
 	{
 		if ((stageIndex < 9) || (stageIndex > 0xB))
 			throw new IllegalArgumentException("RandomizeCaveData used on incorrect stage: index 0x"
@@ -841,22 +863,13 @@ public class MoonwalkerRandomizer
 		int camX2 = initialCamera.x + initialCamera.width;
 		int camY2 = initialCamera.y + initialCamera.height;
 		
-		ArrayList<Short> typeList = new ArrayList<>(
-				mProcArgs.get(stageName)
-				.get("randomizeCaveData")
-				.get("object")
-				.get("type")
-				.stream()
-				.map(s -> Short.parseShort(s, 16))
-				.collect(Collectors.toList()));
-		
 		ArrayList<MDirectObject> caveObjList = new ArrayList<>();
 		LinkedList<MDirectObject> kidMarkerList = new LinkedList<>();
 		
 		for (MDirectObject obj: objArr)
 		{
 			short type = obj.getType();
-			if (typeList.contains(type))
+			if (proc.hasObjectType(type))
 				caveObjList.add(obj);
 			else if (type == markerType)
 				kidMarkerList.add(obj);
@@ -948,20 +961,17 @@ public class MoonwalkerRandomizer
 				marker.setContainer(MDirectObject.Container.REGION_TABLE);
 		}
 	}
-	private void fixStage1Doors(MDirectObject[] objArr, String stageName, int stageIndex, Random r)
+	private void fixStage1Doors(ProcedureDescriptor proc, MDirectObject[] objArr, String stageName, int stageIndex, Random r)
 	{
 		if ((stageIndex < 0) || (stageIndex > 2))
 			throw new IllegalArgumentException("FixStage1Doors used on incorrect stage: index 0x"
 					+ Integer.toHexString(stageIndex));
 		
-		HashMap<String, ArrayList<String>> argMap = mProcArgs.get(stageName)
-				.get("fixStage1Doors")
-				.get("inlinespawnmapref");
-		
-		MoonwalkerArea map = mSpawnMaps.get(stageName).get(argMap
-				.get("name").get(0));
-		int xOff = Integer.parseInt(argMap.get("offsetX").get(0));
-		int yOff = Integer.parseInt(argMap.get("offsetY").get(0));
+		MoonwalkerArea map = mStages.get(stageName).getSpawnMaps().get(proc.getSpawnMapName());
+		if (map == null)
+			throw new IllegalArgumentException("FixStage1Doors used without a valid spawn map in stage " + stageName);
+		int xOff = proc.getOffsetX();
+		int yOff = proc.getOffsetY();
 		
 		for (MDirectObject o: objArr)
 		{
@@ -976,33 +986,8 @@ public class MoonwalkerRandomizer
 			if (!vals.contains(data[2]))
 				continue;
 			
-			boolean isLeftDoor = false;
-			Point p = o.getAbsolutePosition();
-			for (ShapeWrapper sh: map.getContent())
-			{
-				if (sh.isRectangle())
-				{
-					Rectangle rect = new Rectangle(sh.getRectangle());
-					rect.x += xOff;
-					rect.y += yOff;
-					if (rect.contains(p))
-					{
-						isLeftDoor = true;
-						break;
-					}
-				}
-				else
-				{
-					Point po = new Point(sh.getPoint());
-					po.x += xOff;
-					po.y += yOff;
-					if (po.equals(p))
-					{
-						isLeftDoor = true;
-						break;
-					}
-				}
-			}
+			//spawn maps are compacted, so the test has to follow the area's inclusive edges
+			boolean isLeftDoor = map.contains(o.getAbsoluteX() - xOff, o.getAbsoluteY() - yOff);
 			
 			if (isLeftDoor)
 			{
@@ -1019,20 +1004,15 @@ public class MoonwalkerRandomizer
 			o.setData(data);
 		}
 	}
-//	private void fixSpiders(MDirectObject[] objArr, String stageName, int stageIndex, Random r)
+//	private void fixSpiders(ProcedureDescriptor proc, MDirectObject[] objArr, String stageName, int stageIndex, Random r)
 //	{
 //		if ((stageIndex < 9) || (stageIndex > 11))
 //			throw new IllegalArgumentException("FixSpiders used on incorrect stage: index 0x"
 //					+ Integer.toHexString(stageIndex));
 //		
-//		HashMap<String, ArrayList<String>> argMap = mProcArgs.get(stageName)
-//				.get("fixSpiders")
-//				.get("inlinespawnmapref");
-//		
-//		MoonwalkerArea map = mSpawnMaps.get(stageName).get(argMap
-//				.get("name").get(0));
-//		int xOff = Integer.parseInt(argMap.get("offsetX").get(0));
-//		int yOff = Integer.parseInt(argMap.get("offsetY").get(0));
+//		MoonwalkerArea map = mStages.get(stageName).getSpawnMaps().get(proc.getSpawnMapName());
+//		int xOff = proc.getOffsetX();
+//		int yOff = proc.getOffsetY();
 //		
 //		for (MDirectObject o: objArr)
 //		{
@@ -1046,7 +1026,7 @@ public class MoonwalkerRandomizer
 ////			o.setData(data);
 //		}
 //	}
-	private void randomizeTeleporters(MDirectObject[] objArr, String stageName, int stageIndex, Random r)
+	private void randomizeTeleporters(ProcedureDescriptor proc, MDirectObject[] objArr, String stageName, int stageIndex, Random r)
 	{
 		if (stageIndex != 0xC)
 			throw new IllegalArgumentException("RandomizeTeleporters used on incorrect stage: index 0x"
@@ -1056,17 +1036,8 @@ public class MoonwalkerRandomizer
 		
 		try
 		{
-			ArrayList<Short> typeList = new ArrayList<>(
-					mProcArgs.get(stageName)
-					.get("randomizeTeleporters")
-					.get("object")
-					.get("type")
-					.stream()
-					.map(s -> Short.parseShort(s, 16))
-					.collect(Collectors.toList()));
-			
 			ArrayList<MDirectObject> objList = new ArrayList<>(Arrays.stream(objArr)
-				.filter(obj -> typeList.contains(obj.getType()))
+				.filter(obj -> proc.hasObjectType(obj.getType()))
 				.collect(Collectors.toList()));
 			
 			Map<Integer, List<MDirectObject>> groupedObjs =
@@ -1140,17 +1111,6 @@ public class MoonwalkerRandomizer
 		Collections.shuffle(list, r);
 		return list.get(0);
 	}
-	private List<Point> getPoints(Rectangle rect)
-	{
-		ArrayList<Point> ret = new ArrayList<>();
-		int xLim = rect.x + rect.width;
-		int yLim = rect.y + rect.height;
-		for (int x = rect.x; x <= xLim; x++)
-			for (int y = rect.y; y <= yLim; y++)
-				ret.add(new Point(x, y));
-		
-		return ret;
-	}
 	private MDirectObject pickSafeTarget(MDirectObject obj, List<MDirectObject> objList, Random r)
 	{
 		int srcX = obj.getAbsoluteX();
@@ -1248,42 +1208,146 @@ public class MoonwalkerRandomizer
 			objArr[i] = list.toArray(l -> new MDirectObject[l]);
 		}
 	}
-	private void randomizePosition(MDirectObject obj, ArrayList<MDirectObject> randomizedObjList,
-			String stageName, MapRef map, Rectangle initialCamera, Random rand, boolean log)
+	//Places the queued objects in the given order on top of the already placed ones. Messages about
+	//objects left overlapping are collected rather than printed, so that the caller decides their order.
+	private PlacementStats placeObjects(List<QueuedObject> queuedObjsList, PlacedObjects placed,
+			String stageName, Rectangle initialCamera, boolean sampleFreeSpace, int backtracksLeft, boolean log)
+	{
+		PlacementStats stats = new PlacementStats();
+		int[] marks = new int[queuedObjsList.size()];
+		for (int i = 0; i < queuedObjsList.size(); i++)
+		{
+			QueuedObject queued = queuedObjsList.get(i);
+			MDirectObject obj = queued.getObject();
+			marks[i] = placed.size();
+			
+			int tries = randomizePosition(obj, placed, stageName, queued.getMapRef(), initialCamera,
+					queued.getRandom(), sampleFreeSpace, log);
+			stats.attempts += tries;
+			boolean overlaps = !placed.fits(obj, obj.getAbsoluteX(), obj.getAbsoluteY());
+			
+			//Un-place the last few objects and place them again together with the failed one,
+			//which goes first. Each object continues its own random sequence, and a group
+			//that still doesn't fit is put back the way it was.
+			if (overlaps && (i > 0) && (backtracksLeft > 0))
+			{
+				int first = i - Math.min(backtrackDepth, i);
+				int groupSize = i + 1 - first;
+				Point[] savedPositions = new Point[groupSize];
+				Container[] savedContainers = new Container[groupSize];
+				for (int j = 0; j < groupSize; j++)
+				{
+					MDirectObject member = queuedObjsList.get(first + j).getObject();
+					savedPositions[j] = member.getAbsolutePosition();
+					savedContainers[j] = member.getContainer();
+				}
+				
+				for (int retry = 0; overlaps && (retry < backtrackRetries) && (backtracksLeft > 0); retry++)
+				{
+					backtracksLeft--;
+					stats.backtracks++;
+					placed.truncate(marks[first]);
+					
+					overlaps = false;
+					for (int j = 0; (j < groupSize) && !overlaps; j++)
+					{
+						QueuedObject member = queuedObjsList.get(first + ((j + groupSize - 1) % groupSize));
+						MDirectObject memberObj = member.getObject();
+						marks[first + j] = placed.size();
+						stats.attempts += randomizePosition(memberObj, placed, stageName, member.getMapRef(), initialCamera,
+								member.getRandom(), sampleFreeSpace, log);
+						overlaps = !placed.fits(memberObj, memberObj.getAbsoluteX(), memberObj.getAbsoluteY());
+						if (!overlaps)
+							placed.add(memberObj);
+					}
+					
+					if (overlaps)
+					{
+						placed.truncate(marks[first]);
+						for (int j = 0; j < groupSize; j++)
+						{
+							MDirectObject member = queuedObjsList.get(first + j).getObject();
+							member.setAbsolutePosition(savedPositions[j].x, savedPositions[j].y);
+							member.setContainer(savedContainers[j]);
+							if (member == obj)
+								continue;
+							marks[first + j] = placed.size();
+							placed.add(member);
+						}
+					}
+				}
+				
+				if (!overlaps)
+				{
+					//keep the queue in placement order so the marks stay valid
+					Collections.rotate(queuedObjsList.subList(first, i + 1), 1);
+					continue;
+				}
+			}
+			if (overlaps)
+				stats.messages.add(((tries >= retryLimit) ? "Retry limit reached" : "No free space left")
+						+ ", skipping 0x" + Integer.toHexString(0xFFFF & obj.getType()));
+			
+			placed.add(obj);
+		}
+		return stats;
+	}
+	private PlacedObjects createPlacedObjects(List<MDirectObject> fixedObjsList, HitboxResolver hitboxes,
+			HashMap<Short, Integer> minSpacings)
+	{
+		PlacedObjects placed = new PlacedObjects(gridCellSize, hitboxes, mCollisionMatrix, mCollisionTargets, minSpacings);
+		for (MDirectObject obj: fixedObjsList)
+			placed.add(obj);
+		return placed;
+	}
+	//Returns the number of positions tried
+	private int randomizePosition(MDirectObject obj, PlacedObjects placed, String stageName, MapRef map, Rectangle initialCamera, Random r,
+			boolean sampleFreeSpace, boolean log)
 	{
-		final int REGION_WIDTH = 320; //TODO move to Metadata
-		final int BORDER_BUFFER = 3;
-		
-		Random r = new Random(Hashes.murmur64(rand.nextLong()));
-		
 		Point p = null;
 		int stageIndex = mStageIndices.get(stageName);
 		Point offset = map.getOffset();
-		MoonwalkerArea area = mSpawnMaps.get(stageName).get(map.getAreaName());
+		MoonwalkerArea area = mStages.get(stageName).getSpawnMaps().get(map.getAreaName());
+		int limit = retryLimit;
+		
 		int i = 0;
-		for (; i < retryLimit; i++)
+		if (sampleFreeSpace)
 		{
-			p = area.getRandomPoint(r);
-			p.x += offset.x;
-			p.y += offset.y;
+			//Rejection sampling over the whole spawn map is just as uniform over its free points,
+			//so the free space is only worked out once a few of these tries failed
+			boolean found = false;
+			for (; (i < freeSpaceTries) && !found; i++)
+			{
+				p = area.getRandomPoint(r);
+				p.x = applyBorderBuffer(p.x + offset.x);
+				p.y += offset.y;
+				
+				obj.setAbsolutePosition(p.x, p.y);
+				found = placed.fits(obj, p.x, p.y);
+			}
 			
-			if (p.x > BORDER_BUFFER)
+			if (!found)
 			{
-				int off = p.x % REGION_WIDTH;
-				if (off <= BORDER_BUFFER)
-					p.x += BORDER_BUFFER - off;
-				else if (off >= (REGION_WIDTH - BORDER_BUFFER))
-					p.x -= off - REGION_WIDTH + BORDER_BUFFER;
+				MoonwalkerArea freeArea = getFreeSpace(obj, placed, area, offset);
+				if (freeArea.isEmpty())
+					limit = i;
+				else
+					area = freeArea;
 			}
+			else
+				limit = i;
+		}
+		
+		for (; i < limit; i++)
+		{
+			p = area.getRandomPoint(r);
+			p.x = applyBorderBuffer(p.x + offset.x);
+			p.y += offset.y;
 			
 			obj.setAbsolutePosition(p.x, p.y);
 		
-			if (!intersects(obj, randomizedObjList))
+			if (placed.fits(obj, obj.getAbsoluteX(), obj.getAbsoluteY()))
 				break;
-			
-			if ((i + 1) >= retryLimit)
-				System.out.println("Retry limit reached, skipping 0x"
-						+ Integer.toHexString(0xFFFF & obj.getType()));
 		}
 		
 		if (stageIndex < 0x10)
@@ -1299,45 +1363,217 @@ public class MoonwalkerRandomizer
 		}
 		else
 			obj.setContainer(MDirectObject.Container.INITIAL_TABLE);
+		
+		return Math.min(i + 1, limit);
 	}
-	private boolean intersects(MDirectObject obj, ArrayList<MDirectObject> objList)
+	//Moves positions lying right at a region border a few pixels inwards
+	private static int applyBorderBuffer(int x)
 	{
-		HitboxRef srcHRef = null;
-		for (HitboxRef hRef: mHitboxes)
+		if (x > BORDER_BUFFER)
 		{
-			if (hRef.matches(obj))
-			{
-				srcHRef = hRef;
-				break;
-			}
+			int off = x % REGION_WIDTH;
+			if (off <= BORDER_BUFFER)
+				x += BORDER_BUFFER - off;
+			else if (off >= (REGION_WIDTH - BORDER_BUFFER))
+				x -= off - REGION_WIDTH + BORDER_BUFFER;
 		}
-		if (srcHRef == null)
-			return false;
-		ArrayList<HitboxRef> targetHRefs = mCollisionChecks.get(srcHRef.getName());
-		MoonwalkerArea srcArea = srcHRef.getHitboxArea().moveBy(obj.getAbsolutePosition());
+		return x;
+	}
+	//Larger hitboxes checked against more hitbox types in smaller spawn maps come first
+	private double getPlacementDifficulty(QueuedObject queued, String stageName, HitboxResolver hitboxes)
+	{
+		HitboxRef hRef = hitboxes.getHitbox(queued.getObject());
+		if (hRef == null)
+			return 0;
+		Rectangle bounds = hRef.getHitboxArea().getBounds();
+		if (bounds == null)
+			return 0;
+		long[] weights = mStages.get(stageName).getSpawnMaps().get(queued.getMapRef().getAreaName())
+				.getCumulativeWeights();
+		long spawnSize = (weights.length == 0) ? 1 : Math.max(1, weights[weights.length - 1]);
+		double hitboxSize = (bounds.width + 1.0) * (bounds.height + 1.0);
+		int fanOut = mCollisionMatrix[hRef.getId()].cardinality();
+		return hitboxSize * (1 + fanOut) / spawnSize;
+	}
+	//Removes from the spawn map every point at which the object's hitbox would overlap the hitbox
+	//of an already placed object it is checked against, or at which the object would be closer
+	//to one of the same type than the type's spacing. Only objects near the spawn map are looked at.
+	private MoonwalkerArea getFreeSpace(MDirectObject obj, PlacedObjects placed,
+			MoonwalkerArea area, Point offset)
+	{
+		HitboxResolver hitboxes = placed.getHitboxes();
+		HitboxRef srcHRef = hitboxes.getHitbox(obj);
+		int spacing = placed.getMinSpacing(obj.getType());
+		Rectangle areaBounds = area.getBounds();
+		if (((srcHRef == null) && (spacing == 0)) || (areaBounds == null))
+			return area;
+		//spawn map bounds on the stage
+		int x1 = areaBounds.x + offset.x;
+		int y1 = areaBounds.y + offset.y;
+		int x2 = x1 + areaBounds.width;
+		int y2 = y1 + areaBounds.height;
 		
-		for (MDirectObject o: objList)
+		MoonwalkerArea occupied = new MoonwalkerArea();
+		Rectangle srcBounds = (srcHRef == null) ? null : srcHRef.getHitboxArea().getBounds();
+		if (srcBounds != null)
 		{
-			if (o != obj)
+			BitSet targetHRefs = mCollisionMatrix[srcHRef.getId()];
+			int[] targetIds = mCollisionTargets[srcHRef.getId()];
+			ShapeWrapper[] srcShapes = srcHRef.getHitboxArea().getContent();
+			for (MDirectObject o: placed.findHitboxTargets(
+					x1 + srcBounds.x, y1 + srcBounds.y,
+					x2 + srcBounds.x + srcBounds.width, y2 + srcBounds.y + srcBounds.height,
+					targetHRefs))
 			{
-				HitboxRef targetHRef = null;
-				for (HitboxRef hRef: targetHRefs)
+				if (o == obj)
+					continue;
+				HitboxRef targetHRef = hitboxes.getHitbox(o, targetIds);
+				if (targetHRef == null)
+					continue;
+				
+				int baseX = o.getAbsoluteX() - offset.x;
+				int baseY = o.getAbsoluteY() - offset.y;
+				for (ShapeWrapper targetSh: targetHRef.getHitboxArea().getContent())
 				{
-					if (hRef.matches(o))
+					Rectangle target = toRectangle(targetSh);
+					if ((target.width < 0) || (target.height < 0))
+						continue;
+					for (ShapeWrapper srcSh: srcShapes)
 					{
-						targetHRef = hRef;
-						break;
+						Rectangle src = toRectangle(srcSh);
+						if ((src.width < 0) || (src.height < 0))
+							continue;
+						occupied.add(new Rectangle(
+								baseX + target.x - src.x - src.width,
+								baseY + target.y - src.y - src.height,
+								target.width + src.width,
+								target.height + src.height));
 					}
 				}
-				if (targetHRef == null)
+			}
+		}
+		if (spacing > 0)
+		{
+			for (MDirectObject o: placed.findSpacingNeighbours(obj.getType(),
+					x1 - spacing + 1, y1 - spacing + 1, x2 + spacing - 1, y2 + spacing - 1))
+			{
+				if (o != obj)
+					addDisc(occupied, o.getAbsoluteX() - offset.x, o.getAbsoluteY() - offset.y, spacing);
+			}
+		}
+		return area.subtract(occupied);
+	}
+	//Adds every point closer than the radius to (x, y), rows of equal width forming one rectangle
+	private static void addDisc(MoonwalkerArea area, int x, int y, int radius)
+	{
+		long rSq = (long) radius * radius;
+		int half = radius - 1;
+		int start = 0;
+		for (int dy = 0; dy < radius; dy++)
+		{
+			int next = half;
+			while ((next >= 0) && ((((long) next * next) + ((long) (dy + 1) * (dy + 1))) >= rSq))
+				next--;
+			if (((dy + 1) < radius) && (next == half))
+				continue;
+			//rows start to dy on both sides are half points wide each way
+			if (start == 0)
+				area.add(new Rectangle(x - half, y - dy, 2 * half, 2 * dy));
+			else
+			{
+				area.add(new Rectangle(x - half, y + start, 2 * half, dy - start));
+				area.add(new Rectangle(x - half, y - dy, 2 * half, dy - start));
+			}
+			start = dy + 1;
+			half = next;
+		}
+	}
+	private static Rectangle toRectangle(ShapeWrapper sh)
+	{
+		if (sh.isRectangle())
+			return sh.getRectangle();
+		Point p = sh.getPoint();
+		return new Rectangle(p.x, p.y, 0, 0);
+	}
+	//Counts the pairs of objects whose hitboxes overlap while at least one of them is checked
+	//against the other, printing each pair when logging. Sweeps over the objects sorted by the
+	//left edge of their hitbox bounds, only comparing objects whose bounds overlap on the x axis.
+	private int auditOverlaps(String stageName, MDirectObject[] objArr, HitboxResolver hitboxes, boolean log)
+	{
+		int l = objArr.length;
+		int[] minX = new int[l];
+		int[] minY = new int[l];
+		int[] maxX = new int[l];
+		int[] maxY = new int[l];
+		//left edge in the upper half, index in the lower one
+		long[] order = new long[l];
+		int count = 0;
+		
+		for (int i = 0; i < l; i++)
+		{
+			MDirectObject obj = objArr[i];
+			minX[i] = minY[i] = Integer.MAX_VALUE;
+			maxX[i] = maxY[i] = Integer.MIN_VALUE;
+			for (HitboxRef hRef: hitboxes.getMatches(obj))
+			{
+				Rectangle bounds = hRef.getHitboxArea().getBounds();
+				if (bounds == null)
 					continue;
-				MoonwalkerArea targetArea = targetHRef.getHitboxArea().moveBy(o.getAbsolutePosition());
-				
-				if (srcArea.intersects(targetArea))
-					return true;
+				minX[i] = Math.min(minX[i], obj.getAbsoluteX() + bounds.x);
+				minY[i] = Math.min(minY[i], obj.getAbsoluteY() + bounds.y);
+				maxX[i] = Math.max(maxX[i], obj.getAbsoluteX() + bounds.x + bounds.width);
+				maxY[i] = Math.max(maxY[i], obj.getAbsoluteY() + bounds.y + bounds.height);
 			}
+			if (minX[i] <= maxX[i])
+				order[count++] = (((long) minX[i]) << 32) | i;
 		}
-		return false;
+		Arrays.sort(order, 0, count);
+		
+		int overlaps = 0;
+		int[] active = new int[count];
+		int activeCount = 0;
+		for (int k = 0; k < count; k++)
+		{
+			int i = (int) order[k];
+			int kept = 0;
+			for (int j = 0; j < activeCount; j++)
+				if (maxX[active[j]] >= minX[i])
+					active[kept++] = active[j];
+			activeCount = kept;
+			
+			for (int j = 0; j < activeCount; j++)
+			{
+				int a = active[j];
+				if ((minY[a] > maxY[i]) || (minY[i] > maxY[a]))
+					continue;
+				if (checkCollision(objArr[a], objArr[i], hitboxes)
+						|| checkCollision(objArr[i], objArr[a], hitboxes))
+				{
+					overlaps++;
+					if (log)
+						System.out.println("Overlap in stage " + stageName + ": "
+								+ describe(objArr[a]) + " and " + describe(objArr[i]));
+				}
+			}
+			active[activeCount++] = i;
+		}
+		return overlaps;
+	}
+	private boolean checkCollision(MDirectObject src, MDirectObject target, HitboxResolver hitboxes)
+	{
+		HitboxRef srcHRef = hitboxes.getHitbox(src);
+		if (srcHRef == null)
+			return false;
+		HitboxRef targetHRef = hitboxes.getHitbox(target, mCollisionTargets[srcHRef.getId()]);
+		if (targetHRef == null)
+			return false;
+		return srcHRef.getHitboxArea().intersects(targetHRef.getHitboxArea(),
+				target.getAbsoluteX() - src.getAbsoluteX(), target.getAbsoluteY() - src.getAbsoluteY());
+	}
+	private static String describe(MDirectObject obj)
+	{
+		return "0x" + Integer.toHexString(0xFFFF & obj.getType()).toUpperCase()
+				+ " at (" + obj.getAbsoluteX() + ", " + obj.getAbsoluteY() + ")";
 	}
 	private void applyGlobalAttributes(MDirectObject obj, MDirectObject[] objArr)
 	{	
@@ -1408,6 +1644,8 @@ public class MoonwalkerRandomizer
 	static class Binding
 	{
 		private short objType;
+		private String searchDirection;
+		private int searchRange;
 		private BiPredicate<Point, Point> directionPre;
 		private int srcIndex;
 		private int destIndex;
@@ -1416,6 +1654,8 @@ public class MoonwalkerRandomizer
 		public Binding(short objType, String searchDirection, int searchRange, int srcIndex, int destIndex, int length)
 		{
 			this.objType = objType;
+			this.searchDirection = searchDirection;
+			this.searchRange = searchRange;
 			switch ((searchDirection == null)?"null":searchDirection)
 			{
 				case "N":
@@ -1470,6 +1710,14 @@ public class MoonwalkerRandomizer
 		{
 			return objType;
 		}
+		public String getSearchDirection()
+		{
+			return searchDirection;
+		}
+		public int getSearchRange()
+		{
+			return searchRange;
+		}
 		public BiPredicate<Point, Point> getFilter()
 		{
 			return directionPre;
@@ -1492,18 +1740,20 @@ public class MoonwalkerRandomizer
 		private String defaultAreaName;
 		private Point defaultOffset;
 		
-		private Predicate<byte[]>[] predicateArr;
+		private PredicateExpression[] predicateArr;
 		private String[] areaNameArr;
 		private Point[] offsetArr;
 		
+		private int minSpacing;
+		
 		public MapRefResolver(String areaName, Point offset)
 		{
-			predicateArr = new Predicate[0];
+			predicateArr = new PredicateExpression[0];
 			areaNameArr = new String[0];
 			offsetArr = new Point[0];
 			initDefault(areaName, offset);
 		}
-		public MapRefResolver(Predicate<byte[]>[] preArr, String[] areaNameArr,
+		public MapRefResolver(PredicateExpression[] preArr, String[] areaNameArr,
 				Point[] offsetArr, String defaultAreaName, Point defaultOffset)
 		{
 			if ((preArr.length != areaNameArr.length) || (areaNameArr.length != offsetArr.length))
@@ -1526,6 +1776,39 @@ public class MoonwalkerRandomizer
 				defaultOffset = new Point(defOffset);
 		}
 		
+		//Minimum distance between objects of this type, 0 if there is none
+		public int getMinSpacing()
+		{
+			return minSpacing;
+		}
+		public void setMinSpacing(int minSpacing)
+		{
+			if (minSpacing < 0)
+				throw new IllegalArgumentException("Invalid minimum spacing: " + minSpacing);
+			this.minSpacing = minSpacing;
+		}
+		
+		public PredicateExpression[] getPredicates()
+		{
+			return predicateArr.clone();
+		}
+		public String[] getAreaNames()
+		{
+			return areaNameArr.clone();
+		}
+		public Point[] getOffsets()
+		{
+			return offsetArr.clone();
+		}
+		public String getDefaultAreaName()
+		{
+			return defaultAreaName;
+		}
+		public Point getDefaultOffset()
+		{
+			return defaultOffset;
+		}
+		
 		public MapRef getMapRef(byte[] data)
 		{
 			for (int i = 0; i < predicateArr.length; i++)
@@ -1552,7 +1835,8 @@ public class MoonwalkerRandomizer
 				ret += areaNameArr[i] + ", ";
 				ret += offsetArr[i] + "; ";
 			}
-			return ret + "default: " + defaultAreaName + ", " + defaultOffset + "]";
+			return ret + "default: " + defaultAreaName + ", " + defaultOffset
+					+ ((minSpacing > 0) ? ", min spacing: " + minSpacing : "") + "]";
 		}
 	}
 	private static class MapRef
@@ -1575,28 +1859,253 @@ public class MoonwalkerRandomizer
 		}
 	}
 	
+	//Objects already placed on a stage, indexed by hitbox for collision checks and by type
+	//for spacing checks; objects can only be removed in reverse order of addition
+	static class PlacedObjects
+	{
+		private HitboxResolver hitboxes;
+		private BitSet[] collisionMatrix;
+		private int[][] collisionTargets;
+		private HashMap<Short, Integer> minSpacings;
+		private BitSet spacingTags;
+		
+		private ArrayList<MDirectObject> objects;
+		private SpatialGrid<MDirectObject> hitboxGrid;
+		private HashMap<Short, SpatialGrid<MDirectObject>> spacingGrids;
+		private int[] hitboxMarks;
+		private int[] spacingMarks;
+		
+		public PlacedObjects(int cellSize, HitboxResolver hitboxes, BitSet[] collisionMatrix,
+				int[][] collisionTargets, HashMap<Short, Integer> minSpacings)
+		{
+			this.hitboxes = hitboxes;
+			this.collisionMatrix = collisionMatrix;
+			this.collisionTargets = collisionTargets;
+			this.minSpacings = minSpacings;
+			spacingTags = new BitSet(1);
+			spacingTags.set(0);
+			
+			objects = new ArrayList<>();
+			hitboxGrid = new SpatialGrid<>(cellSize);
+			spacingGrids = new HashMap<>();
+			for (Map.Entry<Short, Integer> entry: minSpacings.entrySet())
+				spacingGrids.put(entry.getKey(), new SpatialGrid<>(entry.getValue()));
+			hitboxMarks = new int[16];
+			spacingMarks = new int[16];
+		}
+		
+		public HitboxResolver getHitboxes()
+		{
+			return hitboxes;
+		}
+		public List<MDirectObject> getObjects()
+		{
+			return Collections.unmodifiableList(objects);
+		}
+		public int size()
+		{
+			return objects.size();
+		}
+		public int getMinSpacing(short type)
+		{
+			return minSpacings.getOrDefault(type, 0);
+		}
+		//Placed objects with a hitbox in the given set whose bounds may overlap the given inclusive
+		//bounds, in placement order
+		public List<MDirectObject> findHitboxTargets(int x1, int y1, int x2, int y2, BitSet hitboxIds)
+		{
+			return hitboxGrid.query(x1, y1, x2, y2, hitboxIds);
+		}
+		//Placed objects of the given type that may lie within the given inclusive bounds,
+		//in placement order; empty unless the type has a spacing
+		public List<MDirectObject> findSpacingNeighbours(short type, int x1, int y1, int x2, int y2)
+		{
+			SpatialGrid<MDirectObject> spacingGrid = spacingGrids.get(type);
+			if (spacingGrid == null)
+				return Collections.emptyList();
+			return spacingGrid.query(x1, y1, x2, y2, spacingTags);
+		}
+		
+		//Links the object into the hitbox grid once for every hitbox it matches, tagged with the hitbox id
+		public void add(MDirectObject obj)
+		{
+			int index = objects.size();
+			if (index == hitboxMarks.length)
+			{
+				hitboxMarks = Arrays.copyOf(hitboxMarks, index * 2);
+				spacingMarks = Arrays.copyOf(spacingMarks, index * 2);
+			}
+			objects.add(obj);
+			
+			int x = obj.getAbsoluteX();
+			int y = obj.getAbsoluteY();
+			hitboxMarks[index] = hitboxGrid.mark();
+			for (HitboxRef hRef: hitboxes.getMatches(obj))
+			{
+				Rectangle bounds = hRef.getHitboxArea().getBounds();
+				if (bounds == null)
+					continue;
+				hitboxGrid.add(obj, hRef.getId(), x + bounds.x, y + bounds.y,
+						x + bounds.x + bounds.width, y + bounds.y + bounds.height);
+			}
+			
+			SpatialGrid<MDirectObject> spacingGrid = spacingGrids.get(obj.getType());
+			if (spacingGrid != null)
+			{
+				spacingMarks[index] = spacingGrid.mark();
+				spacingGrid.add(obj, 0, x, y, x, y);
+			}
+		}
+		//Removes the most recently added objects until the given number is left
+		public void truncate(int size)
+		{
+			if ((size < 0) || (size > objects.size()))
+				throw new IllegalArgumentException("Invalid size: " + size);
+			for (int i = objects.size() - 1; i >= size; i--)
+			{
+				SpatialGrid<MDirectObject> spacingGrid = spacingGrids.get(objects.get(i).getType());
+				if (spacingGrid != null)
+					spacingGrid.undo(spacingMarks[i]);
+				hitboxGrid.undo(hitboxMarks[i]);
+				objects.remove(i);
+			}
+		}
+		
+		public boolean fits(MDirectObject obj, int x, int y)
+		{
+			return !intersects(obj, x, y) && !violatesSpacing(obj, x, y);
+		}
+		//Tests the object's hitbox at the given position, which may differ from its current one
+		public boolean intersects(MDirectObject obj, int srcX, int srcY)
+		{
+			HitboxRef srcHRef = hitboxes.getHitbox(obj);
+			if (srcHRef == null)
+				return false;
+			BitSet targetHRefs = collisionMatrix[srcHRef.getId()];
+			int[] targetIds = collisionTargets[srcHRef.getId()];
+			MoonwalkerArea srcArea = srcHRef.getHitboxArea();
+			Rectangle srcBounds = srcArea.getBounds();
+			if (srcBounds == null)
+				return false;
+			int x = srcX + srcBounds.x;
+			int y = srcY + srcBounds.y;
+			
+			return hitboxGrid.anyMatch(x, y, x + srcBounds.width, y + srcBounds.height, targetHRefs, o ->
+			{
+				if (o == obj)
+					return false;
+				HitboxRef targetHRef = hitboxes.getHitbox(o, targetIds);
+				if (targetHRef == null)
+					return false;
+				return srcArea.intersects(targetHRef.getHitboxArea(),
+						o.getAbsoluteX() - srcX, o.getAbsoluteY() - srcY);
+			});
+		}
+		//Tests whether an object of the same type is closer than the type's minimum spacing;
+		//the grid cells are as large as the spacing, so at most 3x3 cells are visited
+		public boolean violatesSpacing(MDirectObject obj, int x, int y)
+		{
+			SpatialGrid<MDirectObject> spacingGrid = spacingGrids.get(obj.getType());
+			if (spacingGrid == null)
+				return false;
+			int spacing = minSpacings.get(obj.getType());
+			long minDistSq = (long) spacing * spacing;
+			return spacingGrid.anyMatch(x - spacing + 1, y - spacing + 1, x + spacing - 1, y + spacing - 1,
+					spacingTags, o ->
+			{
+				if (o == obj)
+					return false;
+				long dx = o.getAbsoluteX() - x;
+				long dy = o.getAbsoluteY() - y;
+				return ((dx * dx) + (dy * dy)) < minDistSq;
+			});
+		}
+	}
+	
+	private static class PlacementStats
+	{
+		private int attempts;
+		private int backtracks;
+		private ArrayList<String> messages;
+		
+		public PlacementStats()
+		{
+			messages = new ArrayList<>();
+		}
+	}
+	
+	private static class QueuedObject
+	{
+		private MDirectObject obj;
+		private MapRef map;
+		private long seed;
+		private Random rand;
+		private double score;
+		
+		public QueuedObject(MDirectObject obj, MapRef map, long seed)
+		{
+			this.obj = obj;
+			this.map = map;
+			this.seed = seed;
+		}
+		public MDirectObject getObject()
+		{
+			return obj;
+		}
+		public MapRef getMapRef()
+		{
+			return map;
+		}
+		public long getSeed()
+		{
+			return seed;
+		}
+		//Created on first use and kept, so placing the object again continues the same sequence
+		public Random getRandom()
+		{
+			if (rand == null)
+				rand = new Random(Hashes.murmur64(seed));
+			return rand;
+		}
+		public double getScore()
+		{
+			return score;
+		}
+		public void setScore(double score)
+		{
+			this.score = score;
+		}
+
+	}
+	
 	static class HitboxRef
 	{
+		private int id;
 		private String name;
 		private MoonwalkerArea hitbox;
 		private short srcObjType;
-		private Predicate<byte[]> pred;
+		private PredicateExpression pred;
 		
-		public HitboxRef(String name, MoonwalkerArea hitboxArea, short srcObjType)
+		public HitboxRef(int id, String name, MoonwalkerArea hitboxArea, short srcObjType)
 		{
-			this(name, hitboxArea, srcObjType, null);
+			this(id, name, hitboxArea, srcObjType, null);
 		}
-		public HitboxRef(String name, MoonwalkerArea hitboxArea, short srcObjType, Predicate<byte[]> predicate)
+		public HitboxRef(int id, String name, MoonwalkerArea hitboxArea, short srcObjType, PredicateExpression predicate)
 		{
+			this.id = id;
 			this.name = name;
 			hitbox = hitboxArea;
 			this.srcObjType = srcObjType;
 			if (predicate == null)
-				pred = arg -> true;
+				pred = PredicateExpression.constant(true);
 			else
 				pred = predicate;
 		}
 		
+		public int getId()
+		{
+			return id;
+		}
 		public String getName()
 		{
 			return name;
@@ -1605,9 +2114,74 @@ public class MoonwalkerRandomizer
 		{
 			return hitbox;
 		}
+		public short getSourceObjectType()
+		{
+			return srcObjType;
+		}
+		public PredicateExpression getPredicate()
+		{
+			return pred;
+		}
 		public boolean matches(MoonwalkerObject obj)
 		{
 			return (srcObjType == obj.getType()) && pred.test(obj.getData());
 		}
 	}
+	//Resolves the hitboxes of objects by type and remembers the result; only valid
+	//as long as the type and data of the resolved objects stay unchanged
+	static class HitboxResolver
+	{
+		private static final HitboxRef[] NO_MATCHES = new HitboxRef[0];
+		
+		private HashMap<Short, HitboxRef[]> hitboxesByType;
+		private IdentityHashMap<MDirectObject, HitboxRef[]> cache;
+		
+		public HitboxResolver(HashMap<Short, HitboxRef[]> hitboxesByType)
+		{
+			this.hitboxesByType = hitboxesByType;
+			cache = new IdentityHashMap<>();
+		}
+		
+		//All matching hitboxes, in declaration order
+		public HitboxRef[] getMatches(MDirectObject obj)
+		{
+			HitboxRef[] matches = cache.get(obj);
+			if (matches == null)
+			{
+				matches = NO_MATCHES;
+				HitboxRef[] candidates = hitboxesByType.get(obj.getType());
+				if (candidates != null)
+				{
+					int count = 0;
+					matches = new HitboxRef[candidates.length];
+					for (HitboxRef hRef: candidates)
+						if (hRef.matches(obj))
+							matches[count++] = hRef;
+					matches = (count == 0) ? NO_MATCHES : Arrays.copyOf(matches, count);
+				}
+				cache.put(obj, matches);
+			}
+			return matches;
+		}
+		//Forgets every resolved object, for when their data has changed
+		public void clear()
+		{
+			cache.clear();
+		}
+		public HitboxRef getHitbox(MDirectObject obj)
+		{
+			HitboxRef[] matches = getMatches(obj);
+			return (matches.length == 0) ? null : matches[0];
+		}
+		//Matching hitbox whose id comes first in the given list
+		public HitboxRef getHitbox(MDirectObject obj, int[] ids)
+		{
+			HitboxRef[] matches = getMatches(obj);
+			for (int id: ids)
+				for (HitboxRef hRef: matches)
+					if (hRef.getId() == id)
+						return hRef;
+			return null;
+		}
+	}
 }
@@ -0,0 +1,133 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import java.awt.Rectangle;
+
+final class OccupancyBitmap
+{
+	//Areas whose bounds would need more bits than this are left uncompiled
+	static final long MAX_BITS = 1L << 22;
+	
+	private final int x;
+	private final int y;
+	private final int width;
+	private final int height;
+	private final int wordsPerRow;
+	private final long[] bits;
+	
+	private OccupancyBitmap(int x, int y, int width, int height)
+	{
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		wordsPerRow = (width + 63) >>> 6;
+		bits = new long[wordsPerRow * height];
+	}
+	
+	static OccupancyBitmap compile(Rectangle bounds, int[] xArr, int[] yArr, int[] wArr, int[] hArr, int count)
+	{
+		if ((bounds == null) || (bounds.width < 0) || (bounds.height < 0))
+			return null;
+		
+		long w = bounds.width + 1L;
+		long h = bounds.height + 1L;
+		if ((((w + 63) >>> 6) << 6) * h > MAX_BITS)
+			return null;
+		
+		OccupancyBitmap ret = new OccupancyBitmap(bounds.x, bounds.y, (int) w, (int) h);
+		for (int i = 0; i < count; i++)
+		{
+			if ((wArr[i] >= 0) && (hArr[i] >= 0))
+				ret.fill(xArr[i] - ret.x, yArr[i] - ret.y,
+						xArr[i] + wArr[i] - ret.x, yArr[i] + hArr[i] - ret.y);
+		}
+		return ret;
+	}
+	
+	//Coordinates are relative to the bitmap origin and inclusive
+	private void fill(int x1, int y1, int x2, int y2)
+	{
+		int w1 = x1 >>> 6;
+		int w2 = x2 >>> 6;
+		long firstMask = -1L << (x1 & 63);
+		long lastMask = -1L >>> (63 - (x2 & 63));
+		for (int row = y1; row <= y2; row++)
+		{
+			int base = row * wordsPerRow;
+			if (w1 == w2)
+				bits[base + w1] |= firstMask & lastMask;
+			else
+			{
+				bits[base + w1] |= firstMask;
+				for (int i = w1 + 1; i < w2; i++)
+					bits[base + i] = -1L;
+				bits[base + w2] |= lastMask;
+			}
+		}
+	}
+	
+	boolean contains(int px, int py)
+	{
+		px -= x;
+		py -= y;
+		if ((px < 0) || (py < 0) || (px >= width) || (py >= height))
+			return false;
+		return (bits[(py * wordsPerRow) + (px >>> 6)] & (1L << (px & 63))) != 0;
+	}
+	
+	//Tests an inclusive rectangle, matching MoonwalkerArea.intersects
+	boolean intersects(int rx, int ry, int rw, int rh)
+	{
+		if ((rw < 0) || (rh < 0))
+			return false;
+		
+		long x1 = Math.max((long) rx - x, 0);
+		long y1 = Math.max((long) ry - y, 0);
+		long x2 = Math.min((long) rx + rw - x, width - 1);
+		long y2 = Math.min((long) ry + rh - y, height - 1);
+		if ((x1 > x2) || (y1 > y2))
+			return false;
+		
+		int w1 = (int) (x1 >>> 6);
+		int w2 = (int) (x2 >>> 6);
+		long firstMask = -1L << (x1 & 63);
+		long lastMask = -1L >>> (63 - (x2 & 63));
+		for (int row = (int) y1; row <= y2; row++)
+		{
+			int base = row * wordsPerRow;
+			if (w1 == w2)
+			{
+				if ((bits[base + w1] & firstMask & lastMask) != 0)
+					return true;
+			}
+			else
+			{
+				if ((bits[base + w1] & firstMask) != 0)
+					return true;
+				for (int i = w1 + 1; i < w2; i++)
+					if (bits[base + i] != 0)
+						return true;
+				if ((bits[base + w2] & lastMask) != 0)
+					return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,362 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+//Predicate over object data stored as a preorder int program, so it can be written
+//to and read from a stage data snapshot. For evaluation the program is compiled once
+//into flat accumulator code with constants folded away. Operands are evaluated left
+//to right and and/or stop at the first deciding operand, like the equivalent lambda chains.
+final class PredicateExpression implements Predicate<byte[]>
+{
+	//const value
+	static final int OP_CONST = 0;
+	//equals index value
+	static final int OP_EQUALS = 1;
+	//and/or/xor operandCount operand...
+	static final int OP_AND = 2;
+	static final int OP_OR = 3;
+	static final int OP_XOR = 4;
+	//not operand
+	static final int OP_NOT = 5;
+	
+	//Compiled code: acc = (data[index] == value)
+	private static final int I_EQUALS = 0;
+	//Skip the next n ints if acc is false / true
+	private static final int I_JUMP_FALSE = 1;
+	private static final int I_JUMP_TRUE = 2;
+	private static final int I_NOT = 3;
+	//Push acc; pop and xor it into acc
+	private static final int I_PUSH = 4;
+	private static final int I_XOR = 5;
+	//The xor stack is kept in the bits of a long
+	private static final int MAX_STACK_DEPTH = 64;
+	
+	private final int[] program;
+	//Index just past the subexpression starting at each opcode
+	private final int[] ends;
+	private final int[] code;
+	//Result when the whole program folds to a constant, -1 otherwise
+	private final int constant;
+	
+	PredicateExpression(int[] program)
+	{
+		this.program = program.clone();
+		ends = new int[program.length];
+		if (link(0) != program.length)
+			throw new IllegalArgumentException("Invalid predicate program.");
+		
+		Code c = compile(0);
+		if (c.stackDepth > MAX_STACK_DEPTH)
+			throw new IllegalArgumentException("Predicate nested too deeply.");
+		code = c.toArray();
+		constant = c.constant;
+	}
+	
+	static PredicateExpression constant(boolean value)
+	{
+		return new PredicateExpression(new int[] {OP_CONST, value ? 1 : 0});
+	}
+	static PredicateExpression dataEquals(int index, int value)
+	{
+		return new PredicateExpression(new int[] {OP_EQUALS, index, value});
+	}
+	static PredicateExpression combine(int op, PredicateExpression left, PredicateExpression right)
+	{
+		if ((op != OP_AND) && (op != OP_OR) && (op != OP_XOR))
+			throw new IllegalArgumentException("Invalid operator: " + op);
+		int[] l = left.program;
+		int[] r = right.program;
+		int[] p;
+		//chains of the same operator share one node, all three operators being associative
+		if (l[0] == op)
+		{
+			p = new int[l.length + r.length];
+			System.arraycopy(l, 0, p, 0, l.length);
+			p[1]++;
+			System.arraycopy(r, 0, p, l.length, r.length);
+		}
+		else
+		{
+			p = new int[2 + l.length + r.length];
+			p[0] = op;
+			p[1] = 2;
+			System.arraycopy(l, 0, p, 2, l.length);
+			System.arraycopy(r, 0, p, 2 + l.length, r.length);
+		}
+		return new PredicateExpression(p);
+	}
+	
+	@Override
+	public PredicateExpression negate()
+	{
+		int[] p = new int[program.length + 1];
+		p[0] = OP_NOT;
+		System.arraycopy(program, 0, p, 1, program.length);
+		return new PredicateExpression(p);
+	}
+	int[] getProgram()
+	{
+		return program.clone();
+	}
+	
+	@Override
+	public boolean test(byte[] data)
+	{
+		if (constant >= 0)
+			return constant != 0;
+		
+		int[] c = code;
+		int l = c.length;
+		boolean acc = false;
+		long stack = 0;
+		int pc = 0;
+		while (pc < l)
+		{
+			switch (c[pc])
+			{
+				case I_EQUALS:
+					acc = data[c[pc + 1]] == c[pc + 2];
+					pc += 3;
+					break;
+				case I_JUMP_FALSE:
+					pc += acc ? 2 : 2 + c[pc + 1];
+					break;
+				case I_JUMP_TRUE:
+					pc += acc ? 2 + c[pc + 1] : 2;
+					break;
+				case I_NOT:
+					acc = !acc;
+					pc++;
+					break;
+				case I_PUSH:
+					stack = (stack << 1) | (acc ? 1 : 0);
+					pc++;
+					break;
+				case I_XOR:
+					acc ^= (stack & 1) != 0;
+					stack >>>= 1;
+					pc++;
+					break;
+				default:
+					throw new IllegalStateException("Invalid instruction: " + c[pc]);
+			}
+		}
+		return acc;
+	}
+	
+	//Compiles the subexpression at pc. Constant operands are dropped where they cannot
+	//change the result and decide it otherwise, in which case the operands that would
+	//have been evaluated before them are skipped as well.
+	private Code compile(int pc)
+	{
+		int[] p = program;
+		switch (p[pc])
+		{
+			case OP_CONST:
+				return Code.constant(p[pc + 1] != 0);
+			case OP_EQUALS:
+			{
+				Code c = new Code();
+				c.add(I_EQUALS);
+				c.add(p[pc + 1]);
+				c.add(p[pc + 2]);
+				return c;
+			}
+			case OP_AND:
+			case OP_OR:
+			{
+				//and: false decides, true is dropped; or the other way round
+				boolean deciding = p[pc] == OP_OR;
+				int jump = deciding ? I_JUMP_TRUE : I_JUMP_FALSE;
+				Code[] operands = new Code[p[pc + 1]];
+				int count = 0;
+				int operand = pc + 2;
+				for (int i = 0; i < operands.length; i++)
+				{
+					Code c = compile(operand);
+					operand = ends[operand];
+					if (c.constant == (deciding ? 1 : 0))
+						return c;
+					if (c.constant < 0)
+						operands[count++] = c;
+				}
+				if (count == 0)
+					return Code.constant(!deciding);
+				
+				//each operand but the last jumps to the end once it decides the result
+				int[] remaining = new int[count];
+				for (int i = count - 2; i >= 0; i--)
+					remaining[i] = remaining[i + 1] + operands[i + 1].size + ((i + 1 < count - 1) ? 2 : 0);
+				Code c = new Code();
+				for (int i = 0; i < count; i++)
+				{
+					c.append(operands[i]);
+					if (i < count - 1)
+					{
+						c.add(jump);
+						c.add(remaining[i]);
+					}
+				}
+				return c;
+			}
+			case OP_XOR:
+			{
+				boolean negate = false;
+				Code c = null;
+				int operand = pc + 2;
+				for (int i = p[pc + 1]; i > 0; i--)
+				{
+					Code o = compile(operand);
+					operand = ends[operand];
+					if (o.constant >= 0)
+						negate ^= o.constant != 0;
+					else if (c == null)
+						c = o;
+					else
+					{
+						c.add(I_PUSH);
+						c.stackDepth = Math.max(c.stackDepth, o.stackDepth + 1);
+						c.append(o);
+						c.add(I_XOR);
+					}
+				}
+				if (c == null)
+					return Code.constant(negate);
+				if (negate)
+					c.add(I_NOT);
+				return c;
+			}
+			case OP_NOT:
+			{
+				Code c = compile(pc + 1);
+				if (c.constant >= 0)
+					return Code.constant(c.constant == 0);
+				c.add(I_NOT);
+				return c;
+			}
+			default:
+				throw new IllegalStateException("Invalid opcode: " + p[pc]);
+		}
+	}
+	
+	//Fills in ends for the subexpression at pc and returns its end
+	private int link(int pc)
+	{
+		if (pc >= program.length)
+			throw new IllegalArgumentException("Invalid predicate program.");
+		int end;
+		switch (program[pc])
+		{
+			case OP_CONST:
+				end = pc + 2;
+				break;
+			case OP_EQUALS:
+				end = pc + 3;
+				break;
+			case OP_AND:
+			case OP_OR:
+			case OP_XOR:
+				if ((pc + 1 >= program.length) || (program[pc + 1] < 1))
+					throw new IllegalArgumentException("Invalid predicate program.");
+				end = pc + 2;
+				for (int i = program[pc + 1]; i > 0; i--)
+					end = link(end);
+				break;
+			case OP_NOT:
+				end = link(pc + 1);
+				break;
+			default:
+				throw new IllegalArgumentException("Invalid opcode: " + program[pc]);
+		}
+		if (end > program.length)
+			throw new IllegalArgumentException("Invalid predicate program.");
+		ends[pc] = end;
+		return end;
+	}
+	
+	private static class Code
+	{
+		private int[] arr = new int[8];
+		private int size;
+		private int constant = -1;
+		private int stackDepth;
+		
+		static Code constant(boolean value)
+		{
+			Code c = new Code();
+			c.constant = value ? 1 : 0;
+			return c;
+		}
+		void add(int value)
+		{
+			if (size == arr.length)
+				arr = Arrays.copyOf(arr, size * 2);
+			arr[size++] = value;
+		}
+		void append(Code other)
+		{
+			for (int i = 0; i < other.size; i++)
+				add(other.arr[i]);
+			stackDepth = Math.max(stackDepth, other.stackDepth);
+		}
+		int[] toArray()
+		{
+			return Arrays.copyOf(arr, size);
+		}
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		append(sb, 0);
+		return sb.toString();
+	}
+	private void append(StringBuilder sb, int pc)
+	{
+		int[] p = program;
+		switch (p[pc])
+		{
+			case OP_CONST:
+				sb.append(p[pc + 1] != 0);
+				break;
+			case OP_EQUALS:
+				sb.append("data[").append(p[pc + 1]).append("] == ").append(p[pc + 2]);
+				break;
+			case OP_NOT:
+				sb.append("not(");
+				append(sb, pc + 1);
+				sb.append(')');
+				break;
+			default:
+				sb.append((p[pc] == OP_AND) ? "and(" : (p[pc] == OP_OR) ? "or(" : "xor(");
+				int operand = pc + 2;
+				for (int i = p[pc + 1]; i > 0; i--)
+				{
+					append(sb, operand);
+					if (i > 1)
+						sb.append(", ");
+					operand = ends[operand];
+				}
+				sb.append(')');
+		}
+	}
+}
@@ -0,0 +1,83 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+//One executeProcedure entry of a stage's randomization flow with its arguments
+//parsed once at load time. Procedures only read the arguments they use.
+public final class ProcedureDescriptor
+{
+	private final String name;
+	//<object type="..."/> arguments
+	private final short[] objectTypes;
+	//<inlineSpawnMapRef name="..." offsetX="..." offsetY="..."/>, null name if there is none
+	private final String spawnMapName;
+	private final int offsetX;
+	private final int offsetY;
+	
+	public ProcedureDescriptor(String name, short[] objectTypes, String spawnMapName, int offsetX, int offsetY)
+	{
+		this.name = name;
+		this.objectTypes = objectTypes.clone();
+		this.spawnMapName = spawnMapName;
+		this.offsetX = offsetX;
+		this.offsetY = offsetY;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	public short[] getObjectTypes()
+	{
+		return objectTypes.clone();
+	}
+	public boolean hasObjectType(short type)
+	{
+		for (short t: objectTypes)
+			if (t == type)
+				return true;
+		return false;
+	}
+	public String getSpawnMapName()
+	{
+		return spawnMapName;
+	}
+	public int getOffsetX()
+	{
+		return offsetX;
+	}
+	public int getOffsetY()
+	{
+		return offsetY;
+	}
+	
+	@Override
+	public String toString()
+	{
+		String ret = "[ProcedureDescriptor: " + name;
+		if (objectTypes.length > 0)
+		{
+			ret += ", object types:";
+			for (short t: objectTypes)
+				ret += " " + Integer.toHexString(0xFFFF & t);
+		}
+		if (spawnMapName != null)
+			ret += ", spawn map: " + spawnMapName + " (" + offsetX + ", " + offsetY + ")";
+		return ret + "]";
+	}
+}
@@ -0,0 +1,115 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import java.awt.Point;
+import java.util.Random;
+
+public class QuadtreeRandomPointGenerator implements RandomPointGenerator
+{
+	@Override
+	public Point getRandomPoint(MoonwalkerArea area, Random r)
+	{
+		if (area.getShapeCount() == 0)
+			return null;
+		long p = sample(area, r);
+		return new Point((int) (p >> 32), (int) p);
+	}
+	@Override
+	public int getRandomPoints(MoonwalkerArea area, Random r, int[] dest, int count)
+	{
+		if (area.getShapeCount() == 0)
+			return 0;
+		for (int i = 0; i < count; i++)
+		{
+			long p = sample(area, r);
+			dest[i * 2] = (int) (p >> 32);
+			dest[(i * 2) + 1] = (int) p;
+		}
+		return count;
+	}
+	
+	//Returns the sampled point packed as (x << 32) | y
+	private static long sample(MoonwalkerArea area, Random r)
+	{
+		int x = area.getBoundsX();
+		int y = area.getBoundsY();
+		int w = area.getBoundsWidth();
+		int h = area.getBoundsHeight();
+		
+		//Descend into a random quadrant overlapping the area until a cell of at most 2x2 remains.
+		//Quadrants are visited in the order NW, NE, SW, SE.
+		while ((w > 1) || (h > 1))
+		{
+			int wHalf = w / 2;
+			int hHalf = h / 2;
+			int eW = w - wHalf;
+			int sH = h - hHalf;
+			
+			boolean nw = area.intersects(x, y, wHalf, hHalf);
+			boolean ne = area.intersects(x + wHalf, y, eW, hHalf);
+			boolean sw = area.intersects(x, y + hHalf, wHalf, sH);
+			boolean se = area.intersects(x + wHalf, y + hHalf, eW, sH);
+			
+			int count = (nw?1:0) + (ne?1:0) + (sw?1:0) + (se?1:0);
+			int chosen = r.nextInt(count);
+			
+			if (nw && (chosen-- == 0))
+			{
+				w = wHalf;
+				h = hHalf;
+			}
+			else if (ne && (chosen-- == 0))
+			{
+				x += wHalf;
+				w = eW;
+				h = hHalf;
+			}
+			else if (sw && (chosen-- == 0))
+			{
+				y += hHalf;
+				w = wHalf;
+				h = sH;
+			}
+			else
+			{
+				x += wHalf;
+				y += hHalf;
+				w = eW;
+				h = sH;
+			}
+		}
+		
+		int xLim = x + w;
+		int yLim = y + h;
+		int count = 0;
+		for (int px = x; px <= xLim; px++)
+			for (int py = y; py <= yLim; py++)
+				if (area.contains(px, py))
+					count++;
+		
+		int chosen = r.nextInt(count);
+		for (int px = x; px <= xLim; px++)
+			for (int py = y; py <= yLim; py++)
+				if (area.contains(px, py) && (chosen-- == 0))
+					return (((long) px) << 32) | (0xFFFFFFFFL & py);
+		
+		//dead code
+		throw new IllegalStateException("Sampled cell contains no points.");
+	}
+}
@@ -23,4 +23,20 @@ import java.util.Random;
 public interface RandomPointGenerator
 {
 	public Point getRandomPoint(MoonwalkerArea area, Random r);
+	
+	//Stores count points in dest as consecutive x, y pairs, consuming r exactly like count
+	//successive calls to getRandomPoint. Returns the number of points stored, which is 0 for
+	//an empty area, just as getRandomPoint returns null for one.
+	public default int getRandomPoints(MoonwalkerArea area, Random r, int[] dest, int count)
+	{
+		for (int i = 0; i < count; i++)
+		{
+			Point p = getRandomPoint(area, r);
+			if (p == null)
+				return i;
+			dest[i * 2] = p.x;
+			dest[(i * 2) + 1] = p.y;
+		}
+		return count;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,232 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+//Uniform spatial hash grid: every element is linked into each cell its bounding box overlaps,
+//together with an integer tag that queries can filter on before looking at the element.
+//Links are pushed onto their cells' chains, so the most recent ones can be undone in O(1) each.
+final class SpatialGrid<T>
+{
+	private final int cellSize;
+	
+	//Open addressing table of cell keys, each slot heading a chain of entries
+	private long[] keys;
+	private int[] heads;
+	private boolean[] used;
+	private int usedSlots;
+	
+	private Object[] entryElems;
+	private long[] entryKeys;
+	private int[] entryTags;
+	private int[] entryNext;
+	private int entryCount;
+	
+	SpatialGrid(int cellSize)
+	{
+		if (cellSize <= 0)
+			throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+		this.cellSize = cellSize;
+		keys = new long[64];
+		heads = new int[64];
+		used = new boolean[64];
+		entryElems = new Object[64];
+		entryKeys = new long[64];
+		entryTags = new int[64];
+		entryNext = new int[64];
+	}
+	
+	//Bounds are inclusive
+	void add(T elem, int tag, int x1, int y1, int x2, int y2)
+	{
+		int cx1 = Math.floorDiv(x1, cellSize);
+		int cy1 = Math.floorDiv(y1, cellSize);
+		int cx2 = Math.floorDiv(x2, cellSize);
+		int cy2 = Math.floorDiv(y2, cellSize);
+		for (int cx = cx1; cx <= cx2; cx++)
+			for (int cy = cy1; cy <= cy2; cy++)
+				link(elem, tag, cx, cy);
+	}
+	
+	//Undo point covering every element added so far
+	int mark()
+	{
+		return entryCount;
+	}
+	//Removes every element added after the given mark was taken, newest first
+	void undo(int mark)
+	{
+		if ((mark < 0) || (mark > entryCount))
+			throw new IllegalArgumentException("Invalid mark: " + mark);
+		while (entryCount > mark)
+		{
+			entryCount--;
+			int slot = findSlot(entryKeys[entryCount]);
+			heads[slot] = entryNext[entryCount];
+			entryElems[entryCount] = null;
+		}
+	}
+	
+	//Tests every element linked to a cell overlapped by the given inclusive bounds whose
+	//tag is in the given set until one passes; elements spanning several cells may be
+	//tested more than once
+	@SuppressWarnings("unchecked")
+	boolean anyMatch(int x1, int y1, int x2, int y2, BitSet tags, Predicate<? super T> test)
+	{
+		if (tags.isEmpty())
+			return false;
+		int cx1 = Math.floorDiv(x1, cellSize);
+		int cy1 = Math.floorDiv(y1, cellSize);
+		int cx2 = Math.floorDiv(x2, cellSize);
+		int cy2 = Math.floorDiv(y2, cellSize);
+		for (int cx = cx1; cx <= cx2; cx++)
+		{
+			for (int cy = cy1; cy <= cy2; cy++)
+			{
+				int slot = findSlot(key(cx, cy));
+				if (slot < 0)
+					continue;
+				for (int e = heads[slot]; e >= 0; e = entryNext[e])
+					if (tags.get(entryTags[e]) && test.test((T) entryElems[e]))
+						return true;
+			}
+		}
+		return false;
+	}
+	
+	//Elements linked to a cell overlapped by the given inclusive bounds whose tag is in the
+	//given set, in the order they were added; an element linked by consecutive additions is
+	//listed once
+	@SuppressWarnings("unchecked")
+	List<T> query(int x1, int y1, int x2, int y2, BitSet tags)
+	{
+		ArrayList<T> ret = new ArrayList<>();
+		if (tags.isEmpty())
+			return ret;
+		int[] found = new int[16];
+		int count = 0;
+		int cx1 = Math.floorDiv(x1, cellSize);
+		int cy1 = Math.floorDiv(y1, cellSize);
+		int cx2 = Math.floorDiv(x2, cellSize);
+		int cy2 = Math.floorDiv(y2, cellSize);
+		for (int cx = cx1; cx <= cx2; cx++)
+		{
+			for (int cy = cy1; cy <= cy2; cy++)
+			{
+				int slot = findSlot(key(cx, cy));
+				if (slot < 0)
+					continue;
+				for (int e = heads[slot]; e >= 0; e = entryNext[e])
+				{
+					if (!tags.get(entryTags[e]))
+						continue;
+					if (count == found.length)
+						found = Arrays.copyOf(found, count * 2);
+					found[count++] = e;
+				}
+			}
+		}
+		
+		//entries are numbered in order of addition
+		Arrays.sort(found, 0, count);
+		Object last = null;
+		for (int i = 0; i < count; i++)
+		{
+			Object elem = entryElems[found[i]];
+			if (elem != last)
+				ret.add((T) elem);
+			last = elem;
+		}
+		return ret;
+	}
+	
+	private static long key(int cx, int cy)
+	{
+		return (((long) cx) << 32) | (0xFFFFFFFFL & cy);
+	}
+	private static int hash(long key)
+	{
+		return (int) Hashes.murmur64(key);
+	}
+	private int findSlot(long key)
+	{
+		int mask = keys.length - 1;
+		for (int i = hash(key) & mask; used[i]; i = (i + 1) & mask)
+			if (keys[i] == key)
+				return i;
+		return -1;
+	}
+	private void link(T elem, int tag, int cx, int cy)
+	{
+		long key = key(cx, cy);
+		int mask = keys.length - 1;
+		int slot = hash(key) & mask;
+		while (used[slot] && (keys[slot] != key))
+			slot = (slot + 1) & mask;
+		if (!used[slot])
+		{
+			keys[slot] = key;
+			heads[slot] = -1;
+			used[slot] = true;
+			usedSlots++;
+		}
+		
+		if (entryCount == entryElems.length)
+		{
+			entryElems = Arrays.copyOf(entryElems, entryCount * 2);
+			entryKeys = Arrays.copyOf(entryKeys, entryCount * 2);
+			entryTags = Arrays.copyOf(entryTags, entryCount * 2);
+			entryNext = Arrays.copyOf(entryNext, entryCount * 2);
+		}
+		entryElems[entryCount] = elem;
+		entryKeys[entryCount] = key;
+		entryTags[entryCount] = tag;
+		entryNext[entryCount] = heads[slot];
+		heads[slot] = entryCount;
+		entryCount++;
+		
+		if ((usedSlots * 2) > keys.length)
+			rehash();
+	}
+	private void rehash()
+	{
+		long[] oldKeys = keys;
+		int[] oldHeads = heads;
+		boolean[] oldUsed = used;
+		keys = new long[oldKeys.length * 2];
+		heads = new int[oldKeys.length * 2];
+		used = new boolean[oldKeys.length * 2];
+		int mask = keys.length - 1;
+		for (int i = 0; i < oldKeys.length; i++)
+		{
+			if (!oldUsed[i])
+				continue;
+			int slot = hash(oldKeys[i]) & mask;
+			while (used[slot])
+				slot = (slot + 1) & mask;
+			keys[slot] = oldKeys[i];
+			heads[slot] = oldHeads[i];
+			used[slot] = true;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import moonwalker.randomizer.core.MoonwalkerRandomizer.MapRefResolver;
+
+//Spawn maps, map ref resolvers and procedures of one stage, read from the XML or the
+//snapshot on first access.
+public class StageData
+{
+	interface Loader
+	{
+		void load(StageData stage);
+	}
+	
+	private String name;
+	private int index;
+	private volatile Loader loader;
+	private RandomPointGenerator rpGen;
+	
+	private HashMap<String, MoonwalkerArea> spawnMaps;
+	private HashMap<Short, MapRefResolver> spawnMapRefs;
+	private List<ProcedureDescriptor> procedures;
+	
+	StageData(String name, int index, Loader loader)
+	{
+		this.name = name;
+		this.index = index;
+		this.loader = loader;
+		spawnMaps = new HashMap<>();
+	}
+	
+	private void materialize()
+	{
+		if (loader != null)
+			load();
+	}
+	private synchronized void load()
+	{
+		if (loader == null)
+			return;
+		loader.load(this);
+		if (rpGen != null)
+			applyRandomPointGenerator();
+		loader = null;
+	}
+	private void applyRandomPointGenerator()
+	{
+		for (MoonwalkerArea area: spawnMaps.values())
+			area.setRandomPointGenerator(rpGen);
+	}
+	public boolean isLoaded()
+	{
+		return loader == null;
+	}
+	
+	public String getName()
+	{
+		return name;
+	}
+	public int getIndex()
+	{
+		return index;
+	}
+	//Also applied to spawn maps loaded later on
+	public synchronized void setRandomPointGenerator(RandomPointGenerator rpg)
+	{
+		rpGen = rpg;
+		if (loader == null)
+			applyRandomPointGenerator();
+	}
+	public HashMap<String, MoonwalkerArea> getSpawnMaps()
+	{
+		materialize();
+		return spawnMaps;
+	}
+	//null if the stage does not randomize positions
+	public HashMap<Short, MapRefResolver> getSpawnMapRefs()
+	{
+		materialize();
+		return spawnMapRefs;
+	}
+	//In execution order, null if the stage has no randomization flow
+	public List<ProcedureDescriptor> getProcedures()
+	{
+		materialize();
+		return procedures;
+	}
+	
+	void setSpawnMaps(HashMap<String, MoonwalkerArea> spawnMaps)
+	{
+		this.spawnMaps = spawnMaps;
+	}
+	void setSpawnMapRefs(HashMap<Short, MapRefResolver> spawnMapRefs)
+	{
+		this.spawnMapRefs = spawnMapRefs;
+	}
+	void setProcedures(List<ProcedureDescriptor> procedures)
+	{
+		this.procedures = (procedures == null) ? null : Collections.unmodifiableList(procedures);
+	}
+}
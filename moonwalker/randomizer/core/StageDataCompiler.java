@@ -0,0 +1,68 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.xml.stream.XMLStreamException;
+
+//Writes the binary snapshot of Randomizer.xml that MoonwalkerRandomizer loads instead of
+//parsing the XML. The snapshot is checked in next to the XML, so rerun this after every
+//change to the data or the snapshot format with
+//moonwalker/randomizer/data/Randomizer.xml moonwalker/randomizer/data/Randomizer.bin
+public final class StageDataCompiler
+{
+	private StageDataCompiler()
+	{
+	}
+	
+	public static void main(String[] args) throws IOException, XMLStreamException
+	{
+		if (args.length != 2)
+		{
+			System.err.println("Usage: StageDataCompiler <Randomizer.xml> <Randomizer.bin>");
+			System.exit(1);
+		}
+		
+		byte[] xml = Files.readAllBytes(Paths.get(args[0]));
+		StageDataParser sdp = StageDataParser.load(xml, null);
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(Paths.get(args[1]))))
+		{
+			sdp.writeSnapshot(out, StageDataParser.checksum(xml));
+		}
+		System.out.println("Wrote " + Files.size(Paths.get(args[1])) + " bytes for "
+				+ sdp.getStageNameList().size() + " stages to " + args[1]);
+		
+		int shapes = 0;
+		int compactShapes = 0;
+		for (Map.Entry<String, int[]> entry: new TreeMap<>(sdp.getSpawnMapShapeCounts()).entrySet())
+		{
+			int[] counts = entry.getValue();
+			System.out.println("  " + entry.getKey() + ": " + counts[0] + " -> " + counts[1] + " shapes"
+					+ ((counts[0] != counts[1]) ? " (compacted)" : ""));
+			shapes += counts[0];
+			compactShapes += counts[1];
+		}
+		System.out.println("Compacted spawn maps from " + shapes + " to " + compactShapes + " shapes");
+	}
+}
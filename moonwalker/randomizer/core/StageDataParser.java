@@ -19,387 +19,869 @@ package moonwalker.randomizer.core;
 
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.function.Predicate;
-import org.w3c.dom.Attr;
-import org.w3c.dom.Element;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import moonwalker.randomizer.core.MoonwalkerRandomizer.Binding;
 import moonwalker.randomizer.core.MoonwalkerRandomizer.HitboxRef;
 import moonwalker.randomizer.core.MoonwalkerRandomizer.MapRefResolver;
 
 public class StageDataParser
 {
+	static final int SNAPSHOT_MAGIC = 0x4D575344;
+	static final int SNAPSHOT_VERSION = 3;
+	
 	private HashMap<Short, Binding[]> bindingMap;
 	private ArrayList<String> mStageNames;
 	private HashMap<String, Integer> mStageIndices;
-	private HashMap<String, HashMap<String, MoonwalkerArea>> mSpawnMaps;
-	private HashMap<String, HashMap<Short, MapRefResolver>> mSpawnMapRefs;
-	private HashMap<String, ArrayList<String>> mProcedures;
-	private HashMap<String, HashMap<String, HashMap<String, HashMap<String, ArrayList<String>>>>>
-		mProcedureArgs;
+	private HashMap<String, StageData> mStages;
 	
 	private ArrayList<HitboxRef> mHitboxes;
 	private HashMap<String, ArrayList<HitboxRef>> mCollisionChecks;
+	private BitSet[] mCollisionMatrix;
+	private int[][] mCollisionTargets;
+	
+	//Shape counts of each spawn map before and after compaction
+	private HashMap<String, int[]> mSpawnMapShapeCounts;
 	
-	public StageDataParser(Element root)
+	private StageDataParser()
 	{
 		bindingMap = new HashMap<>();
 		mStageNames = new ArrayList<>();
 		mStageIndices = new HashMap<>();
-		mSpawnMaps = new HashMap<>();
-		mSpawnMapRefs = new HashMap<>();
-		mProcedures = new HashMap<>();
-		mProcedureArgs = new HashMap<>();
+		mStages = new HashMap<>();
 		
 		mHitboxes = new ArrayList<>();
 		mCollisionChecks = new HashMap<>();
+		mSpawnMapShapeCounts = new HashMap<>();
+	}
+	//Spawn map shapes are read in this single pass, but only compacted and compiled when their
+	//stage is first accessed
+	public StageDataParser(XMLStreamReader reader) throws XMLStreamException
+	{
+		this();
 		
-	    Element globalAttrsElem = elemOrNull(root.getElementsByTagName("globalAttributes"), 0);
-	    if (isImmediateChild(globalAttrsElem, root))
-	    {
-	    	Element bindingsElem = elemOrNull(globalAttrsElem.getElementsByTagName("bindings"), 0);
-	    	if (isImmediateChild(bindingsElem, globalAttrsElem))
-	    	{
-	    		for (Node n: new IterableNodeList(bindingsElem.getElementsByTagName("boundObject")))
-	    		{
-	    			if (!(n instanceof Element))
-	    				continue;
-	    			Element objElem = (Element) n;
-	    			short type = Short.parseShort(objElem.getAttribute("type"), 16);
-	    			
-	    			ArrayList<Binding> bList = new ArrayList<>();
-	    			
-	    			for (Node no: new IterableNodeList(objElem.getElementsByTagName("bindingObject")))
-		    		{
-		    			if (!(no instanceof Element))
-		    				continue;
-		    			
-		    			Element bindSrcObjElem = (Element) no;
-		    			short bindSrcType = Short.parseShort(bindSrcObjElem.getAttribute("type"), 16);
-		    			String direction = elemOrNull(
-		    					bindSrcObjElem.getElementsByTagName("searchDirection"), 0).getTextContent();
-		    			int searchRange = Integer.parseInt(elemOrNull(
-		    					bindSrcObjElem.getElementsByTagName("searchRange"), 0).getTextContent());
-		    			int srcIndex = Integer.parseInt(elemOrNull(
-		    					bindSrcObjElem.getElementsByTagName("sourceIndex"), 0).getTextContent());
-		    			int destIndex = Integer.parseInt(elemOrNull(
-		    					bindSrcObjElem.getElementsByTagName("destinationIndex"), 0).getTextContent());
-		    			int len = Integer.parseInt(elemOrNull(
-		    					bindSrcObjElem.getElementsByTagName("length"), 0).getTextContent());
-		    			bList.add(new Binding(bindSrcType, direction, searchRange, srcIndex, destIndex, len));
-		    		}
-	    			
-	    			bindingMap.put(type, bList.toArray(l -> new Binding[l]));
-	    		}
-	    	}
-	    	
-	    	Element hitboxesElem = elemOrNull(globalAttrsElem.getElementsByTagName("hitboxes"), 0);
-	    	if (isImmediateChild(hitboxesElem, globalAttrsElem))
-	    	{
-	    		for (Node n: new IterableNodeList(hitboxesElem.getElementsByTagName("objectHitbox")))
-	    		{
-	    			if (!(n instanceof Element))
-	    				continue;
-
-	    			Element hitboxElem = (Element) n;
-	    			parseHitboxRef(hitboxElem, mHitboxes);
-	    		}
-	    	}
-	    	
-	    	HashMap<String, HitboxRef> hitboxMap = new HashMap<>();
-	    	for (HitboxRef hRef: mHitboxes)
-	    		hitboxMap.put(hRef.getName(), hRef);
-	    	
-	    	Element collisionChecksElem = elemOrNull(globalAttrsElem.getElementsByTagName("collisionChecks"), 0);
-	    	if (isImmediateChild(collisionChecksElem, globalAttrsElem))
-	    	{
-	    		for (Node n: new IterableNodeList(collisionChecksElem.getElementsByTagName("hitboxRef")))
-	    		{
-	    			if (!(n instanceof Element))
-	    				continue;
-	    			Element hitboxRefElem = (Element) n;
-	    			if (!isImmediateChild(hitboxRefElem, collisionChecksElem))
-	    				continue;
-	    			
-	    			String name = hitboxRefElem.getAttribute("name");
-	    			ArrayList<HitboxRef> collisionCheckTargets = new ArrayList<>();
-	    			
-	    			for (Node no: new IterableNodeList(hitboxRefElem.getElementsByTagName("hitboxRef")))
-		    		{
-	    				if (!(no instanceof Element))
-		    				continue;
-	    				collisionCheckTargets.add(hitboxMap.get(((Element) no).getAttribute("name")));
-		    		}
-	    			
-	    			mCollisionChecks.put(name, collisionCheckTargets);
-	    		}
-	    	}
-	    }
-	    
-	    Element stagesElem = elemOrNull(root.getElementsByTagName("stages"), 0);
-	    for (Node n: new IterableNodeList(stagesElem.getElementsByTagName("stage")))
-	    {
-	    	if (!(n instanceof Element))
-				continue;
-	    	Element e = (Element) n;
-	    	String name = e.getAttribute("name");
-	    	int index = Integer.parseInt(e.getAttribute("index"));
-	    	
-	    	mStageNames.add(name);
-	    	mStageIndices.put(name, index);
-	    	HashMap<String, MoonwalkerArea> areaMaps = new HashMap<>();
-	    	Element areaMapsElem = elemOrNull(e.getElementsByTagName("spawnMaps"), 0);
-	    	if (isImmediateChild(areaMapsElem, e))
-	    	{
-	    		for (Node no: new IterableNodeList(areaMapsElem.getElementsByTagName("spawnMap")))
-	    	    {
-	    			if (!(no instanceof Element))
-	    				continue;
-	    			Element el = (Element) no;
-	    			String areaName = el.getAttribute("name");
-	    			MoonwalkerArea area = new MoonwalkerArea();
-	    			fillArea(area, el.getChildNodes());
-	    			areaMaps.put(areaName, area);
-	    	    }
-	    	}
-	    	mSpawnMaps.put(name, areaMaps);
-	    	
-	    	Element randomizationFlowElem = elemOrNull(e.getElementsByTagName("randomizationFlow"), 0);
-	    	if (isImmediateChild(randomizationFlowElem, e))
-	    	{
-	    		Element randPosElem = elemOrNull(randomizationFlowElem.getElementsByTagName("randomizePositions"), 0);
-	    		
-	    		if (isImmediateChild(randPosElem, randomizationFlowElem))
-	    		{
-		    		HashMap<Short, MapRefResolver> map = new HashMap<>();
-		    		for (Node no: new IterableNodeList(randPosElem.getElementsByTagName("object")))
-		    	    {
-		    			if (!(no instanceof Element))
-		    				continue;
-		    			Element objElem = (Element) no;
-		    			short type = Short.parseShort(objElem.getAttribute("type"), 16);
-		    			
-		    			Element spawnMapRefElem = elemOrNull(objElem.getElementsByTagName("spawnMapRef"), 0);
-		    			if (isImmediateChild(spawnMapRefElem, objElem))
-		    			{
-		    				String areaName = spawnMapRefElem.getAttribute("name");
-		    				Element offsetElem = elemOrNull(spawnMapRefElem.getElementsByTagName("offset"), 0);
-		    				int xOff = Integer.parseInt(offsetElem.getAttribute("x"));
-		    				int yOff = Integer.parseInt(offsetElem.getAttribute("y"));
-		    				
-		    				MapRefResolver mrRes = new MapRefResolver(areaName, new Point(xOff, yOff));
-		    				map.put(type, mrRes);
-		    			}
-		    			else
-		    			{
-		    				ArrayList<Predicate<byte[]>> preList = new ArrayList<>();
-		    				ArrayList<String> mapNameList = new ArrayList<>();
-		    				ArrayList<Point> offsetList = new ArrayList<>();
-		    				
-		    				for (Node node: new IterableNodeList(objElem.getElementsByTagName("case")))
-		    				{
-		    					if (!(node instanceof Element))
-		    	    				continue;
-		    					Element caseElem = (Element) node;
-		    					if (!isImmediateChild(caseElem, objElem))
-		    						continue;
-		    					
-		    					if (elemOrNull(caseElem.getElementsByTagName("doNotRandomize"), 0) == null)
-		    					{
-			    					spawnMapRefElem = elemOrNull(caseElem.getElementsByTagName("spawnMapRef"), 0);
-				    				String areaName = spawnMapRefElem.getAttribute("name");
-				    				Element offsetElem = elemOrNull(spawnMapRefElem.getElementsByTagName("offset"), 0);
-				    				int xOff = Integer.parseInt(offsetElem.getAttribute("x"));
-				    				int yOff = Integer.parseInt(offsetElem.getAttribute("y"));
-				    				
-				    				mapNameList.add(areaName);
-				    				offsetList.add(new Point(xOff, yOff));
-		    					}
-		    					else
-		    					{
-		    						mapNameList.add(null);
-				    				offsetList.add(null);
-		    					}
-			    				
-			    				Element predicateElem = elemOrNull(caseElem.getElementsByTagName("predicate"), 0);
-			    				Predicate<byte[]> pre = constructPredicate(predicateElem, Operator.AND);
-			    				
-			    				preList.add(pre);
-		    				}
-		    				
-		    				Element defElem = elemOrNull(objElem.getElementsByTagName("defaultCase"), 0);
-		    				String defAreaName = null;
-		    				Point defOffset = null;
-		    				if (isImmediateChild(defElem, objElem))
-		    				{
-			    				spawnMapRefElem = elemOrNull(defElem.getElementsByTagName("spawnMapRef"), 0);
-			    				defAreaName = spawnMapRefElem.getAttribute("name");
-			    				Element defOffsetElem = elemOrNull(spawnMapRefElem.getElementsByTagName("offset"), 0);
-			    				int defXOff = Integer.parseInt(defOffsetElem.getAttribute("x"));
-			    				int defYOff = Integer.parseInt(defOffsetElem.getAttribute("y"));
-			    				defOffset = new Point(defXOff, defYOff);
-		    				}
-		    				
-		    				MapRefResolver mrRes = new MapRefResolver(preList.toArray(l -> new Predicate[l]),
-		    						mapNameList.toArray(l -> new String[l]),
-		    						offsetList.toArray(l -> new Point[l]),
-		    						defAreaName, defOffset);
-		    				
-		    				map.put(type, mrRes);
-		    			}
-		    	    }
-		    		mSpawnMapRefs.put(name, map);
-	    		}
-	    		
-	    		ArrayList<String> procList = new ArrayList<>();
-	    		for (Node procNode: new IterableNodeList(randomizationFlowElem.getElementsByTagName("executeProcedure")))
-	    	    {
-	    			if (!(procNode instanceof Element))
-	    				continue;
-	    			Element procElem = (Element) procNode;
-	    			String procName = procElem.getAttribute("name");
-	    			procList.add(procName);
-	    			
-	    			for (Node no: new IterableNodeList(procElem.getChildNodes()))
-		    	    {
-	    				if (!(no instanceof Element))
-		    				continue;
-	    				
-	    				Element procArgElem = (Element) no;
-	    				String argName = procArgElem.getTagName().toLowerCase();
-	    				
-	    				mProcedureArgs.computeIfAbsent(name, key -> new HashMap<>());
-	    				HashMap<String, HashMap<String, HashMap<String, ArrayList<String>>>>
-	    					mProcArgs = mProcedureArgs.get(name);
-	    				mProcArgs.computeIfAbsent(procName, key -> new HashMap<>());
-	    				HashMap<String, HashMap<String, ArrayList<String>>> argMap
-	    					= mProcArgs.get(procName);
-	    				argMap.computeIfAbsent(argName, k -> new HashMap<>());
-	    				
-	    				HashMap<String, ArrayList<String>> arg = argMap.get(argName);
-	    				
-	    				NamedNodeMap attrMap = procArgElem.getAttributes();
-	    				int attrMapLen = attrMap.getLength();
-	    				for (int i = 0; i < attrMapLen; i++)
-	    				{
-	    					Node argAttrNode = attrMap.item(i);
-	    					if (!(argAttrNode instanceof Attr))
-	    						continue;
-	    					
-	    					Attr argAttr = (Attr) argAttrNode;
-	    					String key = argAttr.getName();
-	    					arg.computeIfAbsent(key, k -> new ArrayList<>());
-	    					arg.get(key).add(argAttr.getValue());
-	    				}
-		    	    }
-	    	    }
-	    		mProcedures.put(name, procList);
-	    	}
-	    }
+		HashMap<String, ArrayList<String>> collisionCheckNames = new HashMap<>();
+		
+		if (!nextChildElement(reader))
+			throw new IllegalArgumentException("Missing root element.");
+		
+		boolean globalAttrsFound = false;
+		boolean stagesFound = false;
+		while (nextChildElement(reader))
+		{
+			switch (reader.getLocalName())
+			{
+				case "globalAttributes":
+					if (globalAttrsFound)
+						skipElement(reader);
+					else
+						parseGlobalAttributes(reader, collisionCheckNames);
+					globalAttrsFound = true;
+					break;
+				case "stages":
+					if (stagesFound)
+						skipElement(reader);
+					else
+						parseStages(reader);
+					stagesFound = true;
+					break;
+				default:
+					skipElement(reader);
+			}
+		}
+		resolveCollisionChecks(collisionCheckNames);
 	}
 	
-	private static void parseHitboxRef(Element hitboxElem, ArrayList<HitboxRef> list)
+	private void parseGlobalAttributes(XMLStreamReader reader,
+			HashMap<String, ArrayList<String>> collisionCheckNames) throws XMLStreamException
+	{
+		while (nextChildElement(reader))
+		{
+			switch (reader.getLocalName())
+			{
+				case "bindings":
+					while (nextChildElement(reader))
+					{
+						if (reader.getLocalName().equals("boundObject"))
+							parseBoundObject(reader);
+						else
+							skipElement(reader);
+					}
+					break;
+				case "hitboxes":
+					while (nextChildElement(reader))
+					{
+						if (reader.getLocalName().equals("objectHitbox"))
+							parseHitboxRef(reader, mHitboxes);
+						else
+							skipElement(reader);
+					}
+					break;
+				case "collisionChecks":
+					while (nextChildElement(reader))
+					{
+						if (!reader.getLocalName().equals("hitboxRef"))
+						{
+							skipElement(reader);
+							continue;
+						}
+						
+						String name = getAttribute(reader, "name");
+						ArrayList<String> collisionCheckTargets = new ArrayList<>();
+						while (nextChildElement(reader))
+						{
+							if (reader.getLocalName().equals("hitboxRef"))
+								collisionCheckTargets.add(getAttribute(reader, "name"));
+							skipElement(reader);
+						}
+						collisionCheckNames.put(name, collisionCheckTargets);
+					}
+					break;
+				default:
+					skipElement(reader);
+			}
+		}
+	}
+	private void parseBoundObject(XMLStreamReader reader) throws XMLStreamException
+	{
+		short type = Short.parseShort(getAttribute(reader, "type"), 16);
+		
+		ArrayList<Binding> bList = new ArrayList<>();
+		while (nextChildElement(reader))
+		{
+			if (!reader.getLocalName().equals("bindingObject"))
+			{
+				skipElement(reader);
+				continue;
+			}
+			
+			short bindSrcType = Short.parseShort(getAttribute(reader, "type"), 16);
+			String direction = null;
+			String searchRange = null;
+			String srcIndex = null;
+			String destIndex = null;
+			String len = null;
+			while (nextChildElement(reader))
+			{
+				switch (reader.getLocalName())
+				{
+					case "searchDirection":
+						direction = reader.getElementText();
+						break;
+					case "searchRange":
+						searchRange = reader.getElementText();
+						break;
+					case "sourceIndex":
+						srcIndex = reader.getElementText();
+						break;
+					case "destinationIndex":
+						destIndex = reader.getElementText();
+						break;
+					case "length":
+						len = reader.getElementText();
+						break;
+					default:
+						skipElement(reader);
+				}
+			}
+			bList.add(new Binding(bindSrcType, direction, Integer.parseInt(searchRange),
+					Integer.parseInt(srcIndex), Integer.parseInt(destIndex), Integer.parseInt(len)));
+		}
+		
+		bindingMap.put(type, bList.toArray(l -> new Binding[l]));
+	}
+	private void parseStages(XMLStreamReader reader) throws XMLStreamException
+	{
+		while (nextChildElement(reader))
+		{
+			if (!reader.getLocalName().equals("stage"))
+			{
+				skipElement(reader);
+				continue;
+			}
+			
+			String name = getAttribute(reader, "name");
+			int index = Integer.parseInt(getAttribute(reader, "index"));
+			
+			mStageNames.add(name);
+			mStageIndices.put(name, index);
+			HashMap<String, MoonwalkerArea> rawAreaMaps = new HashMap<>();
+			StageData stage = new StageData(name, index, target -> compactSpawnMaps(target, rawAreaMaps));
+			mStages.put(name, stage);
+			parseStage(reader, stage, rawAreaMaps);
+		}
+	}
+	private void compactSpawnMaps(StageData stage, HashMap<String, MoonwalkerArea> rawAreaMaps)
+	{
+		HashMap<String, MoonwalkerArea> areaMaps = new HashMap<>();
+		for (Map.Entry<String, MoonwalkerArea> entry: rawAreaMaps.entrySet())
+			addSpawnMap(areaMaps, entry.getKey(), entry.getValue());
+		stage.setSpawnMaps(areaMaps);
+	}
+	private static void parseStage(XMLStreamReader reader, StageData stage,
+			HashMap<String, MoonwalkerArea> rawAreaMaps) throws XMLStreamException
+	{
+		while (nextChildElement(reader))
+		{
+			switch (reader.getLocalName())
+			{
+				case "spawnMaps":
+					while (nextChildElement(reader))
+					{
+						if (!reader.getLocalName().equals("spawnMap"))
+						{
+							skipElement(reader);
+							continue;
+						}
+						String areaName = getAttribute(reader, "name");
+						MoonwalkerArea area = new MoonwalkerArea();
+						fillArea(area, reader);
+						rawAreaMaps.put(areaName, area);
+					}
+					break;
+				case "randomizationFlow":
+					parseRandomizationFlow(reader, stage);
+					break;
+				default:
+					skipElement(reader);
+			}
+		}
+	}
+	private static void parseRandomizationFlow(XMLStreamReader reader, StageData stage) throws XMLStreamException
+	{
+		ArrayList<ProcedureDescriptor> procList = new ArrayList<>();
+		while (nextChildElement(reader))
+		{
+			switch (reader.getLocalName())
+			{
+				case "randomizePositions":
+					HashMap<Short, MapRefResolver> map = new HashMap<>();
+					while (nextChildElement(reader))
+					{
+						if (reader.getLocalName().equals("object"))
+							parseObjectMapRef(reader, map);
+						else
+							skipElement(reader);
+					}
+					stage.setSpawnMapRefs(map);
+					break;
+				case "executeProcedure":
+					String procName = getAttribute(reader, "name");
+					ProcedureArguments args = new ProcedureArguments();
+					while (nextChildElement(reader))
+					{
+						String argName = reader.getLocalName().toLowerCase();
+						
+						HashMap<String, String> attrs = new HashMap<>();
+						int attrCount = reader.getAttributeCount();
+						for (int i = 0; i < attrCount; i++)
+							attrs.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+						args.add(argName, attrs);
+						skipElement(reader);
+					}
+					procList.add(args.toDescriptor(procName));
+					break;
+				default:
+					skipElement(reader);
+			}
+		}
+		stage.setProcedures(procList);
+	}
+	private static void parseObjectMapRef(XMLStreamReader reader, HashMap<Short, MapRefResolver> map)
+			throws XMLStreamException
+	{
+		short type = Short.parseShort(getAttribute(reader, "type"), 16);
+		String sMinSpacing = reader.getAttributeValue(null, "minSpacing");
+		int minSpacing = sMinSpacing != null ? Integer.parseInt(sMinSpacing) : 0;
+		
+		ArrayList<String> simpleNameList = new ArrayList<>();
+		ArrayList<Point> simpleOffsetList = new ArrayList<>();
+		ArrayList<PredicateExpression> preList = new ArrayList<>();
+		ArrayList<String> mapNameList = new ArrayList<>();
+		ArrayList<Point> offsetList = new ArrayList<>();
+		ArrayList<String> defNameList = new ArrayList<>();
+		ArrayList<Point> defOffsetList = new ArrayList<>();
+		while (nextChildElement(reader))
+		{
+			switch (reader.getLocalName())
+			{
+				case "spawnMapRef":
+					parseSpawnMapRef(reader, simpleNameList, simpleOffsetList);
+					break;
+				case "case":
+					parseCase(reader, preList, mapNameList, offsetList);
+					break;
+				case "defaultCase":
+					while (nextChildElement(reader))
+					{
+						if (reader.getLocalName().equals("spawnMapRef"))
+							parseSpawnMapRef(reader, defNameList, defOffsetList);
+						else
+							skipElement(reader);
+					}
+					break;
+				default:
+					skipElement(reader);
+			}
+		}
+		
+		MapRefResolver mrRes;
+		if (!simpleNameList.isEmpty())
+			mrRes = new MapRefResolver(simpleNameList.get(0), simpleOffsetList.get(0));
+		else
+			mrRes = new MapRefResolver(preList.toArray(l -> new PredicateExpression[l]),
+					mapNameList.toArray(l -> new String[l]),
+					offsetList.toArray(l -> new Point[l]),
+					defNameList.isEmpty() ? null : defNameList.get(0),
+					defOffsetList.isEmpty() ? null : defOffsetList.get(0));
+		mrRes.setMinSpacing(minSpacing);
+		map.put(type, mrRes);
+	}
+	private static void parseCase(XMLStreamReader reader, ArrayList<PredicateExpression> preList,
+			ArrayList<String> mapNameList, ArrayList<Point> offsetList) throws XMLStreamException
 	{
-		String name = hitboxElem.getAttribute("name");
-		short type = (short) Integer.parseInt(hitboxElem.getAttribute("type"), 16);
+		boolean doNotRandomize = false;
+		ArrayList<String> nameList = new ArrayList<>();
+		ArrayList<Point> offList = new ArrayList<>();
+		PredicateExpression pre = null;
+		while (nextChildElement(reader))
+		{
+			switch (reader.getLocalName())
+			{
+				case "doNotRandomize":
+					doNotRandomize = true;
+					skipElement(reader);
+					break;
+				case "spawnMapRef":
+					parseSpawnMapRef(reader, nameList, offList);
+					break;
+				case "predicate":
+					if (pre == null)
+						pre = constructPredicate(reader, Operator.AND, Integer.MAX_VALUE);
+					else
+						skipElement(reader);
+					break;
+				default:
+					skipElement(reader);
+			}
+		}
 		
+		if (pre == null)
+			throw new IllegalArgumentException("Invalid case definition: predicate is missing.");
+		if (!doNotRandomize && nameList.isEmpty())
+			throw new IllegalArgumentException("Invalid case definition: spawn map reference is missing.");
 		
-		Element hitboxContentElem = elemOrNull(hitboxElem.getElementsByTagName("hitbox"), 0);
-		Element predicateElem = elemOrNull(hitboxElem.getElementsByTagName("predicate"), 0);
-		boolean isComplex = isImmediateChild(hitboxContentElem, hitboxElem);
-		if (isComplex != isImmediateChild(predicateElem, hitboxElem))
+		mapNameList.add(doNotRandomize ? null : nameList.get(0));
+		offsetList.add(doNotRandomize ? null : offList.get(0));
+		preList.add(pre);
+	}
+	private static void parseSpawnMapRef(XMLStreamReader reader, ArrayList<String> nameList,
+			ArrayList<Point> offsetList) throws XMLStreamException
+	{
+		String areaName = getAttribute(reader, "name");
+		Point offset = null;
+		while (nextChildElement(reader))
+		{
+			if (offset == null && reader.getLocalName().equals("offset"))
+				offset = new Point(Integer.parseInt(getAttribute(reader, "x")),
+						Integer.parseInt(getAttribute(reader, "y")));
+			skipElement(reader);
+		}
+		if (offset == null)
+			throw new IllegalArgumentException("Invalid spawn map reference: offset is missing.");
+		
+		nameList.add(areaName);
+		offsetList.add(offset);
+	}
+	private static void parseHitboxRef(XMLStreamReader reader, ArrayList<HitboxRef> list)
+			throws XMLStreamException
+	{
+		String name = getAttribute(reader, "name");
+		short type = (short) Integer.parseInt(getAttribute(reader, "type"), 16);
+		
+		MoonwalkerArea area = new MoonwalkerArea();
+		MoonwalkerArea contentArea = null;
+		PredicateExpression pre = null;
+		while (nextChildElement(reader))
+		{
+			switch (reader.getLocalName())
+			{
+				case "hitbox":
+					if (contentArea == null)
+					{
+						contentArea = new MoonwalkerArea();
+						fillArea(contentArea, reader);
+					}
+					else
+						skipElement(reader);
+					break;
+				case "predicate":
+					if (pre == null)
+						pre = constructPredicate(reader, Operator.AND, Integer.MAX_VALUE);
+					else
+						skipElement(reader);
+					break;
+				default:
+					addShape(area, reader);
+			}
+		}
+		
+		if ((contentArea != null) != (pre != null))
 			throw new IllegalArgumentException("Invalid hitbox definition: either predicate or hitbox shape is missing.");
-		if (isComplex)
+		if (contentArea != null)
+			addHitboxRef(list, name, type, contentArea, pre);
+		else
+			addHitboxRef(list, name, type, area, null);
+	}
+	
+	//Reads a snapshot written by writeSnapshot, see StageDataCompiler
+	public StageDataParser(ByteBuffer snapshot)
+	{
+		this();
+		
+		SnapshotReader in = new SnapshotReader(snapshot);
+		
+		int boundCount = in.next();
+		for (int i = 0; i < boundCount; i++)
 		{
-			MoonwalkerArea area = new MoonwalkerArea();
-			fillArea(area, hitboxContentElem.getChildNodes());
-			Predicate<byte[]> pre = constructPredicate(predicateElem, Operator.AND);
-			list.add(new HitboxRef(name, area, type, pre));
+			short type = (short) in.next();
+			Binding[] bArr = new Binding[in.next()];
+			for (int j = 0; j < bArr.length; j++)
+			{
+				short bindSrcType = (short) in.next();
+				String direction = in.nextString();
+				int searchRange = in.next();
+				int srcIndex = in.next();
+				int destIndex = in.next();
+				int len = in.next();
+				bArr[j] = new Binding(bindSrcType, direction, searchRange, srcIndex, destIndex, len);
+			}
+			bindingMap.put(type, bArr);
+		}
+		
+		int hitboxCount = in.next();
+		for (int i = 0; i < hitboxCount; i++)
+		{
+			String name = in.nextString();
+			short type = (short) in.next();
+			MoonwalkerArea area = in.nextArea();
+			addHitboxRef(mHitboxes, name, type, area, in.nextPredicate());
+		}
+		
+		HashMap<String, ArrayList<String>> collisionCheckNames = new HashMap<>();
+		int checkCount = in.next();
+		for (int i = 0; i < checkCount; i++)
+		{
+			String name = in.nextString();
+			int targetCount = in.next();
+			ArrayList<String> collisionCheckTargets = new ArrayList<>(targetCount);
+			for (int j = 0; j < targetCount; j++)
+				collisionCheckTargets.add(in.nextString());
+			collisionCheckNames.put(name, collisionCheckTargets);
+		}
+		resolveCollisionChecks(collisionCheckNames);
+		
+		//Stage directory, the stages themselves are read when first accessed
+		int stageCount = in.next();
+		for (int i = 0; i < stageCount; i++)
+		{
+			String name = in.nextString();
+			int index = in.next();
+			int offset = in.next();
+			
+			mStageNames.add(name);
+			mStageIndices.put(name, index);
+			mStages.put(name, new StageData(name, index, stage -> readStage(in.at(offset), stage)));
+		}
+	}
+	private static void readStage(SnapshotReader in, StageData stage)
+	{
+		HashMap<String, MoonwalkerArea> areaMaps = new HashMap<>();
+		int mapCount = in.next();
+		for (int i = 0; i < mapCount; i++)
+		{
+			String areaName = in.nextString();
+			//already compacted when the snapshot was written
+			MoonwalkerArea area = in.nextArea();
+			area.freeze();
+			areaMaps.put(areaName, area);
+		}
+		stage.setSpawnMaps(areaMaps);
+		
+		if (in.next() != 0)
+		{
+			HashMap<Short, MapRefResolver> map = new HashMap<>();
+			int objCount = in.next();
+			for (int i = 0; i < objCount; i++)
+			{
+				short type = (short) in.next();
+				int minSpacing = in.next();
+				int caseCount = in.next();
+				PredicateExpression[] preArr = new PredicateExpression[caseCount];
+				String[] mapNameArr = new String[caseCount];
+				Point[] offsetArr = new Point[caseCount];
+				for (int k = 0; k < caseCount; k++)
+				{
+					preArr[k] = in.nextPredicate();
+					mapNameArr[k] = in.nextString();
+					offsetArr[k] = in.nextPoint();
+				}
+				String defAreaName = in.nextString();
+				Point defOffset = in.nextPoint();
+				
+				MapRefResolver mrRes = new MapRefResolver(preArr, mapNameArr, offsetArr, defAreaName, defOffset);
+				mrRes.setMinSpacing(minSpacing);
+				map.put(type, mrRes);
+			}
+			stage.setSpawnMapRefs(map);
+		}
+		
+		if (in.next() != 0)
+		{
+			int procCount = in.next();
+			ArrayList<ProcedureDescriptor> procList = new ArrayList<>(procCount);
+			for (int i = 0; i < procCount; i++)
+			{
+				String procName = in.nextString();
+				short[] objectTypes = new short[in.next()];
+				for (int j = 0; j < objectTypes.length; j++)
+					objectTypes[j] = (short) in.next();
+				String spawnMapName = in.nextString();
+				int offsetX = in.next();
+				int offsetY = in.next();
+				procList.add(new ProcedureDescriptor(procName, objectTypes, spawnMapName, offsetX, offsetY));
+			}
+			stage.setProcedures(procList);
+		}
+	}
+	
+	//Loads the snapshot if it was written for exactly this XML, parses the XML otherwise
+	public static StageDataParser load(byte[] xml, ByteBuffer snapshot) throws XMLStreamException
+	{
+		if ((snapshot != null) && (getSnapshotChecksum(snapshot) == checksum(xml)))
+			return new StageDataParser(snapshot);
+		
+		XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(new ByteArrayInputStream(xml));
+		try
+		{
+			return new StageDataParser(reader);
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	public static long checksum(byte[] xml)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(xml);
+		return crc.getValue();
+	}
+	//Checksum of the XML the snapshot was written from, -1 if it is not a snapshot of the current version
+	public static long getSnapshotChecksum(ByteBuffer snapshot)
+	{
+		ByteBuffer buf = snapshot.duplicate();
+		if ((buf.remaining() < 16) || (buf.getInt() != SNAPSHOT_MAGIC) || (buf.getInt() != SNAPSHOT_VERSION))
+			return -1;
+		return buf.getLong();
+	}
+	public void writeSnapshot(OutputStream out, long sourceChecksum) throws IOException
+	{
+		//Maps are written in key order so the same XML always gives the same snapshot
+		SnapshotWriter w = new SnapshotWriter();
+		
+		w.add(bindingMap.size());
+		for (Map.Entry<Short, Binding[]> entry: new TreeMap<>(bindingMap).entrySet())
+		{
+			w.add(entry.getKey());
+			w.add(entry.getValue().length);
+			for (Binding b: entry.getValue())
+			{
+				w.add(b.getBinderType());
+				w.addString(b.getSearchDirection());
+				w.add(b.getSearchRange());
+				w.add(b.getSourceIndex());
+				w.add(b.getDestinationIndex());
+				w.add(b.getLength());
+			}
 		}
+		
+		w.add(mHitboxes.size());
+		for (HitboxRef hRef: mHitboxes)
+		{
+			w.addString(hRef.getName());
+			w.add(hRef.getSourceObjectType());
+			w.addArea(hRef.getHitboxArea());
+			w.addPredicate(hRef.getPredicate());
+		}
+		
+		w.add(mCollisionChecks.size());
+		for (Map.Entry<String, ArrayList<HitboxRef>> entry: new TreeMap<>(mCollisionChecks).entrySet())
+		{
+			w.addString(entry.getKey());
+			w.add(entry.getValue().size());
+			for (HitboxRef target: entry.getValue())
+				w.addString((target == null) ? null : target.getName());
+		}
+		
+		w.add(mStageNames.size());
+		int[] offsetPositions = new int[mStageNames.size()];
+		for (int i = 0; i < offsetPositions.length; i++)
+		{
+			String name = mStageNames.get(i);
+			w.addString(name);
+			w.add(mStageIndices.get(name));
+			offsetPositions[i] = w.size();
+			w.add(0);
+		}
+		
+		for (int i = 0; i < offsetPositions.length; i++)
+		{
+			StageData stage = mStages.get(mStageNames.get(i));
+			w.set(offsetPositions[i], w.size());
+			
+			HashMap<String, MoonwalkerArea> areaMaps = stage.getSpawnMaps();
+			w.add(areaMaps.size());
+			for (Map.Entry<String, MoonwalkerArea> entry: new TreeMap<>(areaMaps).entrySet())
+			{
+				w.addString(entry.getKey());
+				w.addArea(entry.getValue());
+			}
+			
+			HashMap<Short, MapRefResolver> map = stage.getSpawnMapRefs();
+			w.add((map != null) ? 1 : 0);
+			if (map != null)
+			{
+				w.add(map.size());
+				for (Map.Entry<Short, MapRefResolver> entry: new TreeMap<>(map).entrySet())
+				{
+					MapRefResolver mrRes = entry.getValue();
+					PredicateExpression[] preArr = mrRes.getPredicates();
+					String[] mapNameArr = mrRes.getAreaNames();
+					Point[] offsetArr = mrRes.getOffsets();
+					w.add(entry.getKey());
+					w.add(mrRes.getMinSpacing());
+					w.add(preArr.length);
+					for (int j = 0; j < preArr.length; j++)
+					{
+						w.addPredicate(preArr[j]);
+						w.addString(mapNameArr[j]);
+						w.addPoint(offsetArr[j]);
+					}
+					w.addString(mrRes.getDefaultAreaName());
+					w.addPoint(mrRes.getDefaultOffset());
+				}
+			}
+			
+			List<ProcedureDescriptor> procList = stage.getProcedures();
+			w.add((procList != null) ? 1 : 0);
+			if (procList != null)
+			{
+				w.add(procList.size());
+				for (ProcedureDescriptor proc: procList)
+				{
+					short[] objectTypes = proc.getObjectTypes();
+					w.addString(proc.getName());
+					w.add(objectTypes.length);
+					for (short type: objectTypes)
+						w.add(type);
+					w.addString(proc.getSpawnMapName());
+					w.add(proc.getOffsetX());
+					w.add(proc.getOffsetY());
+				}
+			}
+		}
+		
+		w.writeTo(out, sourceChecksum);
+	}
+	
+	private static void addHitboxRef(ArrayList<HitboxRef> list, String name, short type,
+			MoonwalkerArea area, PredicateExpression pre)
+	{
+		area.freeze();
+		if (pre == null)
+			list.add(new HitboxRef(list.size(), name, area, type));
 		else
+			list.add(new HitboxRef(list.size(), name, area, type, pre));
+	}
+	private void addSpawnMap(HashMap<String, MoonwalkerArea> areaMaps, String areaName, MoonwalkerArea area)
+	{
+		MoonwalkerArea compactArea = area.compact();
+		countSpawnMapShapes(areaName, area.getShapeCount(), compactArea.getShapeCount());
+		compactArea.freeze();
+		areaMaps.put(areaName, compactArea);
+	}
+	//Stages may be loaded from several threads
+	private synchronized void countSpawnMapShapes(String areaName, int shapes, int compactShapes)
+	{
+		mSpawnMapShapeCounts.put(areaName, new int[] {shapes, compactShapes});
+	}
+	//Shared by the XML and snapshot readers once all hitboxes are known
+	private void resolveCollisionChecks(HashMap<String, ArrayList<String>> collisionCheckNames)
+	{
+		HashMap<String, HitboxRef> hitboxMap = new HashMap<>();
+		for (HitboxRef hRef: mHitboxes)
+			hitboxMap.put(hRef.getName(), hRef);
+		
+		for (Map.Entry<String, ArrayList<String>> entry: collisionCheckNames.entrySet())
 		{
-			MoonwalkerArea area = new MoonwalkerArea();
-			fillArea(area, hitboxElem.getChildNodes());
-			list.add(new HitboxRef(name, area, type));
+			ArrayList<HitboxRef> collisionCheckTargets = new ArrayList<>();
+			for (String targetName: entry.getValue())
+				collisionCheckTargets.add(hitboxMap.get(targetName));
+			mCollisionChecks.put(entry.getKey(), collisionCheckTargets);
+		}
+		
+		//Row i holds the ids of all hitboxes that objects with hitbox i are checked against, once
+		//as a set and once in the order of the collision check list, which decides between them
+		mCollisionMatrix = new BitSet[mHitboxes.size()];
+		mCollisionTargets = new int[mHitboxes.size()][];
+		for (HitboxRef hRef: mHitboxes)
+		{
+			BitSet targets = new BitSet(mHitboxes.size());
+			int[] targetIds = new int[0];
+			ArrayList<HitboxRef> collisionCheckTargets = mCollisionChecks.get(hRef.getName());
+			if (collisionCheckTargets != null)
+			{
+				targetIds = new int[collisionCheckTargets.size()];
+				int count = 0;
+				for (HitboxRef target: collisionCheckTargets)
+				{
+					if ((target != null) && !targets.get(target.getId()))
+					{
+						targets.set(target.getId());
+						targetIds[count++] = target.getId();
+					}
+				}
+				targetIds = Arrays.copyOf(targetIds, count);
+			}
+			mCollisionMatrix[hRef.getId()] = targets;
+			mCollisionTargets[hRef.getId()] = targetIds;
 		}
 	}
-	private static void fillArea(MoonwalkerArea area, NodeList nl)
+	private static void fillArea(MoonwalkerArea area, XMLStreamReader reader) throws XMLStreamException
 	{
-		for (Node node: new IterableNodeList(nl))
-	    {
-			if (!(node instanceof Element))
-				continue;
-			Element elem = (Element) node;
-			if (elem.getTagName().equalsIgnoreCase("Rectangle"))
-				area.add(new Rectangle(
-						Integer.parseInt(elem.getAttribute("x")),
-						Integer.parseInt(elem.getAttribute("y")),
-						Integer.parseInt(elem.getAttribute("w")),
-						Integer.parseInt(elem.getAttribute("h"))));
-			else
-				area.add(new Point(
-						Integer.parseInt(elem.getAttribute("x")),
-						Integer.parseInt(elem.getAttribute("y"))));
-	    }
+		while (nextChildElement(reader))
+			addShape(area, reader);
 	}
-
-	private static Element elemOrNull(NodeList src, int index)
+	private static void addShape(MoonwalkerArea area, XMLStreamReader reader) throws XMLStreamException
 	{
-		if (index >= 0 && src.getLength() > index)
-			return (Element) src.item(index);
-		return null;
+		if (reader.getLocalName().equalsIgnoreCase("Rectangle"))
+			area.add(new Rectangle(
+					Integer.parseInt(getAttribute(reader, "x")),
+					Integer.parseInt(getAttribute(reader, "y")),
+					Integer.parseInt(getAttribute(reader, "w")),
+					Integer.parseInt(getAttribute(reader, "h"))));
+		else
+			area.add(new Point(
+					Integer.parseInt(getAttribute(reader, "x")),
+					Integer.parseInt(getAttribute(reader, "y"))));
+		skipElement(reader);
 	}
-	private static boolean isImmediateChild(Element child, Element parent)
+	//Advances to the next child of the current element; false once its end tag is reached
+	private static boolean nextChildElement(XMLStreamReader reader) throws XMLStreamException
 	{
-		return (child != null) && (child.getParentNode().equals(parent));
+		while (reader.hasNext())
+		{
+			switch (reader.next())
+			{
+				case XMLStreamConstants.START_ELEMENT:
+					return true;
+				case XMLStreamConstants.END_ELEMENT:
+				case XMLStreamConstants.END_DOCUMENT:
+					return false;
+			}
+		}
+		return false;
+	}
+	//Consumes the rest of the current element, up to and including its end tag
+	private static void skipElement(XMLStreamReader reader) throws XMLStreamException
+	{
+		int depth = 1;
+		while (depth > 0 && reader.hasNext())
+		{
+			switch (reader.next())
+			{
+				case XMLStreamConstants.START_ELEMENT:
+					depth++;
+					break;
+				case XMLStreamConstants.END_ELEMENT:
+					depth--;
+					break;
+			}
+		}
 	}
-	private static Predicate<byte[]> constructPredicate(Element root, Operator oper)
+	//Missing attributes read as an empty string and fail parsing like empty ones
+	private static String getAttribute(XMLStreamReader reader, String name)
 	{
-		Predicate<byte[]> ret = null;
+		String value = reader.getAttributeValue(null, name);
+		return value != null ? value : "";
+	}
+
+	private static PredicateExpression constructPredicate(XMLStreamReader reader, Operator oper, int maxOperands)
+			throws XMLStreamException
+	{
+		PredicateExpression ret = null;
+		int operands = 0;
 		
-		for (Node pNode: new IterableNodeList(root.getChildNodes()))
+		while (nextChildElement(reader))
 		{
-			if (!(pNode instanceof Element))
-				continue;
+			if (++operands > maxOperands)
+				throw new IllegalArgumentException("Too many operands.");
 			
-			Element pElem = (Element) pNode;
-			switch (pElem.getTagName().toLowerCase())
+			switch (reader.getLocalName().toLowerCase())
 			{
 				case "dataequals":
-					int ind = Integer.parseInt(pElem.getAttribute("index"));
-					int val = Integer.parseInt(pElem.getAttribute("value"));
-					ret = concatPredicate(ret, arr -> arr[ind] == val, oper);
+					int ind = Integer.parseInt(getAttribute(reader, "index"));
+					int val = Integer.parseInt(getAttribute(reader, "value"));
+					ret = concatPredicate(ret, PredicateExpression.dataEquals(ind, val), oper);
+					skipElement(reader);
 					break;
 				case "dataequalshex":
-					ind = Integer.parseInt(pElem.getAttribute("index"));
-					val = Integer.parseInt(pElem.getAttribute("value"), 16);
-					ret = concatPredicate(ret, arr -> arr[ind] == val, oper);
+					ind = Integer.parseInt(getAttribute(reader, "index"));
+					val = Integer.parseInt(getAttribute(reader, "value"), 16);
+					ret = concatPredicate(ret, PredicateExpression.dataEquals(ind, val), oper);
+					skipElement(reader);
 					break;
 				case "const":
-					String sVal = pElem.getAttribute("val");
+					String sVal = getAttribute(reader, "val");
 					if (sVal.equalsIgnoreCase("true"))
-						ret = concatPredicate(ret, arr -> true, oper);
+						ret = concatPredicate(ret, PredicateExpression.constant(true), oper);
 					else if (sVal.equalsIgnoreCase("false"))
-						ret = concatPredicate(ret, arr -> false, oper);
+						ret = concatPredicate(ret, PredicateExpression.constant(false), oper);
 					else
 						throw new IllegalArgumentException("Invalid constant.");
+					skipElement(reader);
+					break;
 				case "and":
-					ret = concatPredicate(ret, constructPredicate(pElem, Operator.AND), oper);
+					ret = concatPredicate(ret, constructPredicate(reader, Operator.AND, Integer.MAX_VALUE), oper);
 					break;
 				case "or":
-					ret = concatPredicate(ret, constructPredicate(pElem, Operator.OR), oper);
+					ret = concatPredicate(ret, constructPredicate(reader, Operator.OR, Integer.MAX_VALUE), oper);
 					break;
 				case "xor":
-					ret = concatPredicate(ret, constructPredicate(pElem, Operator.XOR), oper);
+					ret = concatPredicate(ret, constructPredicate(reader, Operator.XOR, Integer.MAX_VALUE), oper);
 					break;
 				case "not":
-					ret = concatPredicate(ret, singleElemToPredicate(pElem).negate(), oper);
+					ret = concatPredicate(ret, constructPredicate(reader, Operator.AND, 1).negate(), oper);
 					break;
+				default:
+					skipElement(reader);
 			}
 		}
 		
@@ -408,20 +890,7 @@ public class StageDataParser
 		
 		return ret;
 	}
-	private static Predicate<byte[]> singleElemToPredicate(Element root)
-	{
-		boolean found = false;
-		for (Node pNode: new IterableNodeList(root.getChildNodes()))
-		{
-			if (!(pNode instanceof Element))
-				continue;
-			if (found)
-				throw new IllegalArgumentException("Too many operands.");
-			found =  true;
-		}
-		return constructPredicate(root, Operator.AND);
-	}
-	private static Predicate<byte[]> concatPredicate(Predicate<byte[]> srcP, Predicate<byte[]> newP, Operator oper)
+	private static PredicateExpression concatPredicate(PredicateExpression srcP, PredicateExpression newP, Operator oper)
 	{
 		if (srcP == null)
 			return newP;
@@ -431,11 +900,11 @@ public class StageDataParser
 		{
 			default:
 			case AND:
-				return srcP.and(newP);
+				return PredicateExpression.combine(PredicateExpression.OP_AND, srcP, newP);
 			case OR:
-				return srcP.or(newP);
+				return PredicateExpression.combine(PredicateExpression.OP_OR, srcP, newP);
 			case XOR:
-				return srcP.or(newP).and(srcP.and(newP).negate());
+				return PredicateExpression.combine(PredicateExpression.OP_XOR, srcP, newP);
 			case NOT:
 				throw new IllegalArgumentException("Too many operands for operation: not.");
 		}
@@ -447,38 +916,220 @@ public class StageDataParser
 		XOR,
 		NOT
 	}
-	private static class IterableNodeList implements Iterable<Node>
+	//Typed arguments of one executeProcedure element; values are parsed here once
+	//instead of every time the procedure runs
+	private static class ProcedureArguments
 	{
-		private Node[] arr;
-		private int counter;
+		private ArrayList<Short> objectTypes = new ArrayList<>();
+		private String spawnMapName;
+		private int offsetX;
+		private int offsetY;
 		
-		public IterableNodeList(NodeList nl)
+		void add(String argName, HashMap<String, String> attrs)
 		{
-			arr = new Node[nl.getLength()];
-			for (int i = 0; i < arr.length; i++)
-				arr[i] = nl.item(i);
-			counter = 0;
+			switch (argName)
+			{
+				case "object":
+					String type = attrs.get("type");
+					if (type != null)
+						objectTypes.add(Short.parseShort(type, 16));
+					break;
+				case "inlinespawnmapref":
+					if (spawnMapName != null)
+						break;
+					spawnMapName = attrs.get("name");
+					offsetX = Integer.parseInt(attrs.get("offsetX"));
+					offsetY = Integer.parseInt(attrs.get("offsetY"));
+					break;
+			}
 		}
+		ProcedureDescriptor toDescriptor(String name)
+		{
+			short[] types = new short[objectTypes.size()];
+			for (int i = 0; i < types.length; i++)
+				types[i] = objectTypes.get(i);
+			return new ProcedureDescriptor(name, types, spawnMapName, offsetX, offsetY);
+		}
+	}
+	//Snapshot layout: magic, version, source checksum, string table, then one packed int
+	//array holding everything else; strings are referenced by index, -1 standing for null
+	private static class SnapshotWriter
+	{
+		private int[] data = new int[1024];
+		private int size;
+		private ArrayList<String> strings = new ArrayList<>();
+		private HashMap<String, Integer> stringIds = new HashMap<>();
 		
-		@Override
-		public Iterator<Node> iterator()
+		int size()
 		{
-			return new Iterator<Node>()
+			return size;
+		}
+		void set(int pos, int value)
+		{
+			data[pos] = value;
+		}
+		void add(int value)
+		{
+			if (size == data.length)
+				data = Arrays.copyOf(data, size * 2);
+			data[size++] = value;
+		}
+		void addString(String s)
+		{
+			if (s == null)
+			{
+				add(-1);
+				return;
+			}
+			Integer id = stringIds.get(s);
+			if (id == null)
+			{
+				id = strings.size();
+				strings.add(s);
+				stringIds.put(s, id);
+			}
+			add(id);
+		}
+		void addPoint(Point p)
+		{
+			add((p != null) ? 1 : 0);
+			if (p != null)
+			{
+				add(p.x);
+				add(p.y);
+			}
+		}
+		void addArea(MoonwalkerArea area)
+		{
+			ShapeWrapper[] content = area.getContent();
+			add(content.length);
+			for (ShapeWrapper sh: content)
 			{
-				@Override
-				public boolean hasNext()
+				if (sh.isRectangle())
 				{
-					return counter < arr.length;
+					Rectangle r = sh.getRectangle();
+					add(1);
+					add(r.x);
+					add(r.y);
+					add(r.width);
+					add(r.height);
 				}
-				@Override
-				public Node next()
+				else
+				{
+					add(0);
+					add(sh.getPoint().x);
+					add(sh.getPoint().y);
+				}
+			}
+		}
+		void addPredicate(PredicateExpression pre)
+		{
+			int[] program = pre.getProgram();
+			add(program.length);
+			for (int op: program)
+				add(op);
+		}
+		void writeTo(OutputStream out, long sourceChecksum) throws IOException
+		{
+			DataOutputStream dOut = new DataOutputStream(out);
+			dOut.writeInt(SNAPSHOT_MAGIC);
+			dOut.writeInt(SNAPSHOT_VERSION);
+			dOut.writeLong(sourceChecksum);
+			dOut.writeInt(strings.size());
+			for (String s: strings)
+			{
+				byte[] b = s.getBytes(StandardCharsets.UTF_8);
+				dOut.writeInt(b.length);
+				dOut.write(b);
+			}
+			dOut.writeInt(size);
+			for (int i = 0; i < size; i++)
+				dOut.writeInt(data[i]);
+			dOut.flush();
+		}
+	}
+	private static class SnapshotReader
+	{
+		private String[] strings;
+		private int[] data;
+		private int pos;
+		
+		private SnapshotReader(String[] strings, int[] data, int pos)
+		{
+			this.strings = strings;
+			this.data = data;
+			this.pos = pos;
+		}
+		SnapshotReader(ByteBuffer snapshot)
+		{
+			ByteBuffer buf = snapshot.duplicate();
+			if ((buf.remaining() < 16) || (buf.getInt() != SNAPSHOT_MAGIC))
+				throw new IllegalArgumentException("Not a stage data snapshot.");
+			int version = buf.getInt();
+			if (version != SNAPSHOT_VERSION)
+				throw new IllegalArgumentException("Unsupported snapshot version: " + version);
+			buf.getLong();
+			
+			strings = new String[buf.getInt()];
+			for (int i = 0; i < strings.length; i++)
+			{
+				byte[] b = new byte[buf.getInt()];
+				buf.get(b);
+				strings[i] = new String(b, StandardCharsets.UTF_8);
+			}
+			data = new int[buf.getInt()];
+			buf.asIntBuffer().get(data);
+		}
+		
+		//Separate reader over the same data, starting at offset
+		SnapshotReader at(int offset)
+		{
+			return new SnapshotReader(strings, data, offset);
+		}
+		int next()
+		{
+			return data[pos++];
+		}
+		String nextString()
+		{
+			int id = next();
+			return (id < 0) ? null : strings[id];
+		}
+		Point nextPoint()
+		{
+			if (next() == 0)
+				return null;
+			int x = next();
+			int y = next();
+			return new Point(x, y);
+		}
+		MoonwalkerArea nextArea()
+		{
+			MoonwalkerArea area = new MoonwalkerArea();
+			int shapeCount = next();
+			for (int i = 0; i < shapeCount; i++)
+			{
+				boolean isRect = next() != 0;
+				int x = next();
+				int y = next();
+				if (isRect)
 				{
-					return arr[counter++];
+					int w = next();
+					int h = next();
+					area.add(new Rectangle(x, y, w, h));
 				}
-			};
+				else
+					area.add(new Point(x, y));
+			}
+			return area;
+		}
+		PredicateExpression nextPredicate()
+		{
+			int[] program = Arrays.copyOfRange(data, pos + 1, pos + 1 + data[pos]);
+			pos += program.length + 1;
+			return new PredicateExpression(program);
 		}
 	}
-
 	public HashMap<Short, Binding[]> getBindingMap()
 	{
 		return bindingMap;
@@ -491,29 +1142,30 @@ public class StageDataParser
 	{
 		return mStageIndices;
 	}
-	public HashMap<String, HashMap<String, MoonwalkerArea>> getSpawnMapList()
+	public HashMap<String, StageData> getStages()
 	{
-		return mSpawnMaps;
+		return mStages;
 	}
-	public HashMap<String, HashMap<Short, MapRefResolver>> getSpawnMapRefList()
+	public ArrayList<HitboxRef> getHitboxes()
 	{
-		return mSpawnMapRefs;
+		return mHitboxes;
 	}
-	public HashMap<String, ArrayList<String>> getExecutedProcedureList()
+	public HashMap<String, ArrayList<HitboxRef>> getCollisionChecks()
 	{
-		return mProcedures;
+		return mCollisionChecks;
 	}
-	public HashMap<String, HashMap<String, HashMap<String, HashMap<String, ArrayList<String>>>>>
-		getProcedureArguments()
+	public BitSet[] getCollisionMatrix()
 	{
-		return mProcedureArgs;
+		return mCollisionMatrix;
 	}
-	public ArrayList<HitboxRef> getHitboxes()
+	public int[][] getCollisionTargets()
 	{
-		return mHitboxes;
+		return mCollisionTargets;
 	}
-	public HashMap<String, ArrayList<HitboxRef>> getCollisionChecks()
+	//Shape counts before and after compaction by spawn map name, for the spawn maps parsed so far;
+	//spawn maps read from a snapshot were compacted when it was written and are not listed
+	public synchronized HashMap<String, int[]> getSpawnMapShapeCounts()
 	{
-		return mCollisionChecks;
+		return new HashMap<>(mSpawnMapShapeCounts);
 	}
 }
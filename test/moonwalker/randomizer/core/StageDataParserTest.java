@@ -0,0 +1,92 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+
+public class StageDataParserTest
+{
+	private static PredicateExpression parsePredicate(String predicate) throws XMLStreamException
+	{
+		String xml = "<randomizer><globalAttributes><hitboxes>"
+				+ "<objectHitbox name=\"test\" type=\"5\">"
+				+ "<hitbox><rectangle x=\"0\" y=\"0\" w=\"8\" h=\"8\"/></hitbox>"
+				+ "<predicate>" + predicate + "</predicate>"
+				+ "</objectHitbox>"
+				+ "</hitboxes></globalAttributes></randomizer>";
+		return StageDataParser.load(xml.getBytes(StandardCharsets.UTF_8), null).getHitboxes().get(0).getPredicate();
+	}
+	
+	@Test
+	public void constantFoldsOr() throws XMLStreamException
+	{
+		PredicateExpression pre = parsePredicate(
+				"<or><const val=\"true\"/><dataEquals index=\"0\" value=\"1\"/></or>");
+		assertEquals("or(true, data[0] == 1)", pre.toString());
+		assertTrue(pre.test(new byte[] {0}));
+		assertTrue(pre.test(new byte[] {1}));
+	}
+	
+	@Test
+	public void constantFoldsAnd() throws XMLStreamException
+	{
+		PredicateExpression pre = parsePredicate(
+				"<and><const val=\"false\"/><dataEquals index=\"0\" value=\"1\"/></and>");
+		assertEquals("and(false, data[0] == 1)", pre.toString());
+		assertFalse(pre.test(new byte[] {0}));
+		assertFalse(pre.test(new byte[] {1}));
+	}
+	
+	@Test
+	public void constantJoinsTopLevelAnd() throws XMLStreamException
+	{
+		PredicateExpression pre = parsePredicate(
+				"<const val=\"true\"/><dataEquals index=\"0\" value=\"1\"/>");
+		assertEquals("and(true, data[0] == 1)", pre.toString());
+		assertFalse(pre.test(new byte[] {0}));
+		assertTrue(pre.test(new byte[] {1}));
+	}
+	
+	@Test
+	public void collisionTargetsKeepListOrder() throws XMLStreamException
+	{
+		String xml = "<randomizer><globalAttributes><hitboxes>"
+				+ "<objectHitbox name=\"a\" type=\"5\"><rectangle x=\"0\" y=\"0\" w=\"8\" h=\"8\"/></objectHitbox>"
+				+ "<objectHitbox name=\"b\" type=\"6\"><rectangle x=\"0\" y=\"0\" w=\"8\" h=\"8\"/></objectHitbox>"
+				+ "<objectHitbox name=\"c\" type=\"7\"><rectangle x=\"0\" y=\"0\" w=\"8\" h=\"8\"/></objectHitbox>"
+				+ "</hitboxes><collisionChecks>"
+				+ "<hitboxRef name=\"a\"><hitboxRef name=\"c\"/><hitboxRef name=\"a\"/><hitboxRef name=\"c\"/></hitboxRef>"
+				+ "</collisionChecks></globalAttributes></randomizer>";
+		StageDataParser sdp = StageDataParser.load(xml.getBytes(StandardCharsets.UTF_8), null);
+		assertArrayEquals(new int[] {2, 0}, sdp.getCollisionTargets()[0]);
+		assertArrayEquals(new int[0], sdp.getCollisionTargets()[1]);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void invalidConstantIsRejected() throws XMLStreamException
+	{
+		parsePredicate("<const val=\"maybe\"/>");
+	}
+}
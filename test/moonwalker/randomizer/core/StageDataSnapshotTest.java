@@ -0,0 +1,78 @@
+/*
+    Copyright (C) 2020 Micha Kullass
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Affero General Public License as published
+    by the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Affero General Public License for more details.
+
+    You should have received a copy of the GNU Affero General Public License
+    along with this program.  If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package moonwalker.randomizer.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import javax.xml.stream.XMLStreamException;
+import org.junit.Test;
+
+//Randomizer.bin is checked in, so it has to be regenerated with StageDataCompiler
+//whenever Randomizer.xml or the snapshot format changes
+public class StageDataSnapshotTest
+{
+	private static final String STALE = "Randomizer.bin is stale, rerun StageDataCompiler "
+			+ "moonwalker/randomizer/data/Randomizer.xml moonwalker/randomizer/data/Randomizer.bin";
+	
+	private static byte[] readResource(String name) throws IOException
+	{
+		try (InputStream in = StageDataSnapshotTest.class.getResourceAsStream("/moonwalker/randomizer/data/" + name))
+		{
+			assertNotNull(name + " is missing", in);
+			return in.readAllBytes();
+		}
+	}
+	private static byte[] writeSnapshot(StageDataParser sdp, long sourceChecksum) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sdp.writeSnapshot(out, sourceChecksum);
+		return out.toByteArray();
+	}
+	
+	@Test
+	public void snapshotChecksumMatchesXml() throws IOException
+	{
+		byte[] xml = readResource("Randomizer.xml");
+		byte[] bin = readResource("Randomizer.bin");
+		assertEquals(STALE, StageDataParser.checksum(xml), StageDataParser.getSnapshotChecksum(ByteBuffer.wrap(bin)));
+	}
+	
+	@Test
+	public void snapshotMatchesXmlModel() throws IOException, XMLStreamException
+	{
+		byte[] xml = readResource("Randomizer.xml");
+		byte[] bin = readResource("Randomizer.bin");
+		long checksum = StageDataParser.checksum(xml);
+		assertArrayEquals(STALE, writeSnapshot(StageDataParser.load(xml, null), checksum), bin);
+	}
+	
+	@Test
+	public void snapshotRoundTrips() throws IOException
+	{
+		byte[] bin = readResource("Randomizer.bin");
+		StageDataParser sdp = new StageDataParser(ByteBuffer.wrap(bin));
+		assertArrayEquals("Snapshot changed when written back",
+				bin, writeSnapshot(sdp, StageDataParser.getSnapshotChecksum(ByteBuffer.wrap(bin))));
+	}
+}